@@ -0,0 +1,391 @@
+package org.cadams.jbouquet.configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only, typed view of a parsed YAML configuration.
+ *
+ * <p>
+ * Nested maps are flattened into dotted keys, so {@code smtp: {port: 25}} is read with
+ * {@code getInt("smtp.port")}. Every value is converted once when the view is built and
+ * kept as a primitive, so the typed getters are a single map lookup and allocate nothing
+ * on success. Numbers may be given as YAML numbers or strings; durations are written as a
+ * number followed by {@code ns}, {@code us}, {@code ms}, {@code s}, {@code m}, {@code h} or
+ * {@code d}, a bare number being milliseconds.
+ * </p>
+ * <p>
+ * Getters without a default throw {@link IllegalArgumentException} when the key is missing
+ * or its value does not have the requested type. Views are immutable and may be shared.
+ * </p>
+ * <p>
+ * Views returned by {@link ConfigurationFinder#readMerged(String)} combine several files and
+ * record, for each key, the location of the file it was taken from; see {@link #getSource(String)}.
+ * </p>
+ *
+ * @author cta
+ */
+public final class ConfigView {
+	private static final Pattern DURATION = Pattern.compile("(-?\\d+)\\s*(ns|us|ms|s|m|h|d)?");
+
+	private static final int LONG = 1;
+	private static final int DOUBLE = 2;
+	private static final int BOOLEAN = 4;
+	private static final int DURATION_NANOS = 8;
+
+	private static final ConfigView EMPTY = new ConfigView(null);
+
+	/**
+	 * Returns a view without any keys.
+	 */
+	public static ConfigView empty() {
+		return EMPTY;
+	}
+
+	private final Map<String, Value> values;
+
+	/**
+	 * Creates a view of the specified parsed document.
+	 *
+	 * @param document a map as produced by {@code YamlParser.parse(Map.class, ...)}; or null for an empty view
+	 */
+	public ConfigView(Map<?, ?> document) {
+		this.values = new HashMap<String, Value>();
+		if (document != null)
+			overlay("", document, null, values, new HashSet<String>());
+	}
+
+	/**
+	 * Deep-merges the documents into a single view. Later documents take precedence: their
+	 * maps are merged key by key into earlier ones, while any other value, lists included,
+	 * replaces what earlier documents had under the same key.
+	 *
+	 * @param documents the parsed documents, lowest precedence first
+	 * @param sources the location of each document
+	 * @return
+	 */
+	static ConfigView merge(List<? extends Map<?, ?>> documents, List<String> sources) {
+		ConfigView view = new ConfigView(null);
+		Set<String> branches = new HashSet<String>();
+		for (int i = 0; i < documents.size(); i++) {
+			overlay("", documents.get(i), sources.get(i), view.values, branches);
+		}
+
+		return view;
+	}
+
+	public boolean contains(String key) {
+		return values.containsKey(key);
+	}
+
+	/**
+	 * Returns every dotted key of the view.
+	 */
+	public Set<String> keys() {
+		return Collections.unmodifiableSet(values.keySet());
+	}
+
+	/**
+	 * Returns the value as parsed by YAML, e.g. a String, Integer or List.
+	 *
+	 * @param key
+	 * @return the value, or null if the key is missing
+	 */
+	public Object get(String key) {
+		Value value = values.get(key);
+		return (value != null) ? value.raw : null;
+	}
+
+	/**
+	 * Returns the location of the file the key was read from.
+	 *
+	 * @param key
+	 * @return the location, or null if the key is missing or the view was not built from located files
+	 */
+	public String getSource(String key) {
+		Value value = values.get(key);
+		return (value != null) ? value.source : null;
+	}
+
+	public String getString(String key) {
+		return require(key).text;
+	}
+
+	public String getString(String key, String defaultValue) {
+		Value value = values.get(key);
+		return (value != null && value.text != null) ? value.text : defaultValue;
+	}
+
+	public int getInt(String key) {
+		return toInt(key, require(key, LONG));
+	}
+
+	public int getInt(String key, int defaultValue) {
+		Value value = values.get(key);
+		return (value != null && value.text != null) ? toInt(key, check(key, value, LONG)) : defaultValue;
+	}
+
+	public long getLong(String key) {
+		return require(key, LONG).longValue;
+	}
+
+	public long getLong(String key, long defaultValue) {
+		Value value = values.get(key);
+		return (value != null && value.text != null) ? check(key, value, LONG).longValue : defaultValue;
+	}
+
+	public double getDouble(String key) {
+		return require(key, DOUBLE).doubleValue;
+	}
+
+	public double getDouble(String key, double defaultValue) {
+		Value value = values.get(key);
+		return (value != null && value.text != null) ? check(key, value, DOUBLE).doubleValue : defaultValue;
+	}
+
+	/**
+	 * Accepts true/false, yes/no and on/off.
+	 */
+	public boolean getBoolean(String key) {
+		return require(key, BOOLEAN).longValue != 0;
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		Value value = values.get(key);
+		return (value != null && value.text != null) ? check(key, value, BOOLEAN).longValue != 0 : defaultValue;
+	}
+
+	/**
+	 * Returns a duration such as {@code 30s} converted to the specified unit.
+	 *
+	 * @param key
+	 * @param unit
+	 * @return
+	 */
+	public long getDuration(String key, TimeUnit unit) {
+		return unit.convert(require(key, DURATION_NANOS).durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns a duration such as {@code 30s} converted to the specified unit.
+	 *
+	 * @param key
+	 * @param unit
+	 * @param defaultValue returned, as is, if the key is missing
+	 * @return
+	 */
+	public long getDuration(String key, TimeUnit unit, long defaultValue) {
+		Value value = values.get(key);
+		return (value != null && value.text != null) ? unit.convert(check(key, value, DURATION_NANOS).durationNanos, TimeUnit.NANOSECONDS) : defaultValue;
+	}
+
+	/**
+	 * Returns the list stored under the key, or an empty list if it is missing.
+	 */
+	public List<?> getList(String key) {
+		Object raw = get(key);
+		if (raw == null)
+			return Collections.emptyList();
+		if (!(raw instanceof List))
+			throw new IllegalArgumentException("The configuration value " + key + " is not a list: " + raw);
+
+		return Collections.unmodifiableList((List<?>)raw);
+	}
+
+	/**
+	 * Returns the keys below the specified prefix as their own view, e.g. {@code getView("smtp")}
+	 * exposes {@code smtp.port} as {@code port}.
+	 *
+	 * @param prefix
+	 * @return
+	 */
+	public ConfigView getView(String prefix) {
+		String start = prefix + ".";
+		ConfigView view = new ConfigView(null);
+		for (Map.Entry<String, Value> entry : values.entrySet()) {
+			if (entry.getKey().startsWith(start))
+				view.values.put(entry.getKey().substring(start.length()), entry.getValue());
+		}
+
+		return view;
+	}
+
+	/**
+	 * Returns a copy of the view as dotted keys and string values.
+	 */
+	public Map<String, String> toMap() {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, Value> entry : values.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().text);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+
+	private Value require(String key) {
+		Value value = values.get(key);
+		if (value == null || value.text == null)
+			throw new IllegalArgumentException("The configuration value " + key + " is not set");
+
+		return value;
+	}
+
+	private Value require(String key, int type) {
+		return check(key, require(key), type);
+	}
+
+	private static Value check(String key, Value value, int type) {
+		if ((value.types & type) == 0)
+			throw new IllegalArgumentException("The configuration value " + key + " can not be read as " + typeName(type) + ": " + value.text);
+
+		return value;
+	}
+
+	private static int toInt(String key, Value value) {
+		if (value.longValue < Integer.MIN_VALUE || value.longValue > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The configuration value " + key + " does not fit an int: " + value.text);
+
+		return (int)value.longValue;
+	}
+
+	private static String typeName(int type) {
+		switch (type) {
+		case LONG:
+			return "an integer";
+		case DOUBLE:
+			return "a number";
+		case BOOLEAN:
+			return "a boolean";
+		default:
+			return "a duration";
+		}
+	}
+
+	/**
+	 * Flattens the map into the dotted keys of the result, replacing what is already there.
+	 *
+	 * @param branches the keys which currently hold nested maps
+	 */
+	private static void overlay(String prefix, Map<?, ?> map, String source, Map<String, Value> result, Set<String> branches) {
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			String key = prefix + entry.getKey();
+			if (entry.getValue() instanceof Map) {
+				result.remove(key);
+				branches.add(key);
+				overlay(key + ".", (Map<?, ?>)entry.getValue(), source, result, branches);
+			} else {
+				if (branches.remove(key))
+					removeBranch(key + ".", result, branches);
+				result.put(key, new Value(entry.getValue(), source));
+			}
+		}
+	}
+
+	private static void removeBranch(String prefix, Map<String, Value> result, Set<String> branches) {
+		for (Iterator<String> iterator = result.keySet().iterator(); iterator.hasNext();) {
+			if (iterator.next().startsWith(prefix))
+				iterator.remove();
+		}
+		for (Iterator<String> iterator = branches.iterator(); iterator.hasNext();) {
+			if (iterator.next().startsWith(prefix))
+				iterator.remove();
+		}
+	}
+
+	/**
+	 * A leaf value with every representation it can be read as, converted up front.
+	 */
+	private static final class Value {
+		private final Object raw;
+		private final String text;
+		private final String source;
+		private int types;
+		private long longValue;
+		private double doubleValue;
+		private long durationNanos;
+
+		Value(Object raw, String source) {
+			this.raw = raw;
+			this.source = source;
+			this.text = (raw != null) ? raw.toString() : null;
+			if (raw instanceof Boolean) {
+				setBoolean((Boolean)raw);
+			} else if (raw instanceof Number) {
+				setNumber((Number)raw);
+			} else if (text != null) {
+				parse(text.trim());
+			}
+		}
+
+		private void setBoolean(boolean value) {
+			types |= BOOLEAN;
+			longValue = value ? 1 : 0;
+		}
+
+		private void setNumber(Number number) {
+			doubleValue = number.doubleValue();
+			types |= DOUBLE;
+			if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+				longValue = number.longValue();
+				durationNanos = TimeUnit.MILLISECONDS.toNanos(longValue);
+				types |= LONG | DURATION_NANOS;
+			}
+		}
+
+		private void parse(String value) {
+			String lower = value.toLowerCase();
+			if (lower.equals("true") || lower.equals("yes") || lower.equals("on")) {
+				setBoolean(true);
+			} else if (lower.equals("false") || lower.equals("no") || lower.equals("off")) {
+				setBoolean(false);
+			}
+
+			try {
+				longValue = Long.parseLong(value);
+				types |= LONG;
+			} catch(NumberFormatException ignore) {}
+			try {
+				doubleValue = Double.parseDouble(value);
+				types |= DOUBLE;
+			} catch(NumberFormatException ignore) {}
+
+			Matcher matcher = DURATION.matcher(lower);
+			if (matcher.matches()) {
+				try {
+					durationNanos = unit(matcher.group(2)).toNanos(Long.parseLong(matcher.group(1)));
+					types |= DURATION_NANOS;
+				} catch(NumberFormatException ignore) {}
+			}
+		}
+
+		private static TimeUnit unit(String suffix) {
+			if (suffix == null || suffix.equals("ms"))
+				return TimeUnit.MILLISECONDS;
+			if (suffix.equals("ns"))
+				return TimeUnit.NANOSECONDS;
+			if (suffix.equals("us"))
+				return TimeUnit.MICROSECONDS;
+			if (suffix.equals("s"))
+				return TimeUnit.SECONDS;
+			if (suffix.equals("m"))
+				return TimeUnit.MINUTES;
+			if (suffix.equals("h"))
+				return TimeUnit.HOURS;
+
+			return TimeUnit.DAYS;
+		}
+	}
+}
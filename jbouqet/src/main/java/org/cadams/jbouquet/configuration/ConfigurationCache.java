@@ -0,0 +1,309 @@
+package org.cadams.jbouquet.configuration;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+import org.cadams.jbouquet.file.DirectoryWatcher;
+import org.cadams.jbouquet.file.FileEvent;
+import org.cadams.jbouquet.file.FileEventListener;
+import org.cadams.jbouquet.file.FileException;
+
+/**
+ * Caches located and parsed configuration files for {@link ConfigurationFinder}.
+ *
+ * <p>
+ * Entries are keyed by the search paths and filename, remember the location the file was
+ * resolved to and hold one parsed object per requested type. Files resolved from the file
+ * system are watched: when one changes its contents are re-read and, if their hash differs,
+ * every cached type is re-parsed and the registered {@link ConfigurationListener}s are
+ * notified. If the new contents can not be parsed the previous objects are kept. A deleted
+ * file is dropped from the cache and resolved again on the next lookup.
+ * </p>
+ * <p>
+ * Typed objects are shared between callers and must be treated as read-only. Only the
+ * resolved file is watched; a file later created at a location earlier in the search
+ * path is not picked up until the entry is invalidated.
+ * </p>
+ *
+ * @author cta
+ */
+public class ConfigurationCache implements Closeable {
+	private static final Logger logger = Logger.getLogger(ConfigurationCache.class.getName());
+
+	private static ConfigurationCache defaultCache;
+
+	/**
+	 * Returns the process-wide cache, watching for changes.
+	 *
+	 * @return
+	 */
+	public static synchronized ConfigurationCache getDefault() {
+		if (defaultCache == null)
+			defaultCache = new ConfigurationCache(true);
+
+		return defaultCache;
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, List<Registration<?>>> listeners = new ConcurrentHashMap<String, List<Registration<?>>>();
+	private final Set<File> watchedDirectories = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+	private final DirectoryWatcher watcher;
+
+	/**
+	 * Creates a cache which watches the resolved files for changes.
+	 */
+	public ConfigurationCache() {
+		this(true);
+	}
+
+	/**
+	 * @param watch reload entries when their files change; otherwise entries are kept until invalidated
+	 */
+	public ConfigurationCache(boolean watch) {
+		if (watch) {
+			watcher = new DirectoryWatcher();
+			watcher.addListener(new FileEventListener() {
+				public void onEvent(FileEvent event) {
+					fileChanged(event);
+				}
+			});
+		} else {
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Registers a listener notified with the re-parsed object whenever the configuration file
+	 * changes. Only types which have been read through the cache are re-parsed.
+	 *
+	 * @param filename
+	 * @param type
+	 * @param listener
+	 */
+	public <T> void addListener(String filename, Class<T> type, ConfigurationListener<? super T> listener) {
+		List<Registration<?>> registrations = listeners.get(filename);
+		if (registrations == null) {
+			List<Registration<?>> created = new CopyOnWriteArrayList<Registration<?>>();
+			registrations = listeners.putIfAbsent(filename, created);
+			if (registrations == null)
+				registrations = created;
+		}
+
+		registrations.add(new Registration<T>(type, listener));
+	}
+
+	public void removeListener(String filename, ConfigurationListener<?> listener) {
+		List<Registration<?>> registrations = listeners.get(filename);
+		if (registrations != null) {
+			for (Registration<?> registration : registrations) {
+				if (registration.listener == listener)
+					registrations.remove(registration);
+			}
+		}
+	}
+
+	/**
+	 * Drops every cached entry of the specified filename.
+	 *
+	 * @param filename
+	 */
+	public void invalidate(String filename) {
+		for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+			if (iterator.next().filename.equals(filename))
+				iterator.remove();
+		}
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * Stops watching for changes. Cached entries remain available.
+	 */
+	public void close() {
+		if (watcher != null)
+			watcher.close();
+	}
+
+	/**
+	 * Returns the cached configuration, locating and parsing it on first use.
+	 *
+	 * @param paths the search paths
+	 * @param filename
+	 * @param kind identifies the parsed representation, e.g. the target class
+	 * @param type the type listeners of this representation register for
+	 * @param parser
+	 * @return
+	 */
+	<T> T get(List<String> paths, String filename, String kind, Class<?> type, ConfigurationParser<T> parser) {
+		String key = paths.toString() + "|" + filename;
+		Entry entry = entries.get(key);
+		ConfigurationMetrics.get().cacheLookup(ConfigurationMetrics.CONFIGURATION_CACHE, entry != null && entry.slots.containsKey(kind));
+		if (entry == null) {
+			ResolvedResource resource = Resources.findResource(filename, paths);
+			if (resource == null)
+				throw new IllegalArgumentException("Could not find the " + filename + " file in any location. Locations checked:" + paths.toString());
+
+			entry = new Entry(key, filename, resource);
+			Entry existing = entries.putIfAbsent(key, entry);
+			if (existing != null)
+				entry = existing;
+			else
+				watch(entry);
+		}
+
+		return entry.get(kind, type, parser);
+	}
+
+	/**
+	 * Returns the raw contents of a cached entry, locating it on first use.
+	 */
+	String getContent(List<String> paths, String filename) {
+		return get(paths, filename, "raw", String.class, new ConfigurationParser<String>() {
+			public String parse(String content) {
+				return content;
+			}
+		});
+	}
+
+	private void watch(Entry entry) {
+		if (watcher == null || entry.path == null)
+			return;
+
+		File directory = entry.path.getParent().toFile();
+		if (watchedDirectories.add(directory)) {
+			try {
+				watcher.watch(directory);
+			} catch(FileException | IllegalStateException e) {
+				logger.warn("Could not watch " + directory + " for configuration changes", e);
+			}
+		}
+	}
+
+	private void fileChanged(FileEvent event) {
+		Path path = normalize(event.getFile());
+		for (Entry entry : entries.values()) {
+			if (!path.equals(entry.path))
+				continue;
+
+			Resources.invalidate(entry.resource.getLocation());
+
+			if (event.getKind() == FileEvent.Kind.DELETE) {
+				entries.remove(entry.key, entry);
+			} else {
+				reload(entry);
+			}
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void reload(Entry entry) {
+		long start = System.nanoTime();
+		String content = Resources.getResourceAsString(entry.resource.getLocation());
+		if (content == null) {
+			entries.remove(entry.key, entry);
+			return;
+		}
+
+		String hash = Digests.sha1(content);
+		if (hash.equals(entry.hash))
+			return;
+
+		entry.resource = new ResolvedResource(entry.resource.getLocation(), content, entry.resource.getFile());
+		entry.hash = hash;
+		if (logger.isInfoEnabled())
+			logger.info("Reloading configuration " + entry.resource.getLocation());
+
+		List<Registration<?>> registrations = listeners.get(entry.filename);
+		for (Slot slot : entry.slots.values()) {
+			Object value;
+			try {
+				value = slot.parser.parse(content);
+			} catch(RuntimeException e) {
+				logger.error("Could not parse the changed configuration " + entry.resource.getLocation() + ", keeping the previous version", e);
+				continue;
+			}
+			slot.value = value;
+
+			if (registrations == null)
+				continue;
+			for (Registration registration : registrations) {
+				if (registration.type != slot.type)
+					continue;
+				try {
+					registration.listener.configurationChanged(entry.filename, value);
+				} catch(RuntimeException e) {
+					logger.error("Configuration listener failed for " + entry.filename, e);
+				}
+			}
+		}
+		
+		ConfigurationMetrics.get().reloaded(entry.resource.getLocation(), System.nanoTime() - start);
+	}
+
+	private static Path normalize(File file) {
+		return file.toPath().toAbsolutePath().normalize();
+	}
+
+	private static class Entry {
+		private final String key;
+		private final String filename;
+		private final Path path;
+		private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+		private volatile ResolvedResource resource;
+		private volatile String hash;
+
+		Entry(String key, String filename, ResolvedResource resource) {
+			this.key = key;
+			this.filename = filename;
+			this.resource = resource;
+			this.hash = Digests.sha1(resource.getContent());
+			this.path = (resource.getFile() != null) ? normalize(resource.getFile()) : null;
+		}
+
+		@SuppressWarnings("unchecked")
+		<T> T get(String kind, Class<?> type, ConfigurationParser<T> parser) {
+			Slot slot = slots.get(kind);
+			if (slot == null) {
+				Slot created = new Slot(type, parser, parser.parse(resource.getContent()));
+				slot = slots.putIfAbsent(kind, created);
+				if (slot == null)
+					slot = created;
+			}
+
+			return (T)slot.value;
+		}
+	}
+
+	private static class Slot {
+		private final Class<?> type;
+		private final ConfigurationParser<?> parser;
+		private volatile Object value;
+
+		Slot(Class<?> type, ConfigurationParser<?> parser, Object value) {
+			this.type = type;
+			this.parser = parser;
+			this.value = value;
+		}
+	}
+
+	private static class Registration<T> {
+		private final Class<T> type;
+		private final ConfigurationListener<? super T> listener;
+
+		Registration(Class<T> type, ConfigurationListener<? super T> listener) {
+			this.type = type;
+			this.listener = listener;
+		}
+	}
+}
@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -68,6 +70,9 @@ public class ConfigurationFinder {
 	}
 	
 	private final List<String> paths;
+	private ConfigurationCache cache;
+	private SnapshotStore snapshots;
+	
 	private ConfigurationFinder(List<String> additionalPaths) {
 		this.paths = new ArrayList<String>();
 		
@@ -82,6 +87,35 @@ public class ConfigurationFinder {
 		this.paths.addAll(globalPaths);
 	}
 	
+	/**
+	 * Serves every lookup of this finder from the specified cache, see {@link ConfigurationCache}.
+	 * <p>
+	 * Objects returned by {@link #read(Class, String)} are then shared between callers and
+	 * must not be modified. Maps and properties are returned as copies.
+	 * 
+	 * @param cache the cache to use, e.g. {@link ConfigurationCache#getDefault()}; or null to disable caching
+	 * @return this finder
+	 */
+	public ConfigurationFinder useCache(ConfigurationCache cache) {
+		this.cache = cache;
+		return this;
+	}
+	
+	/**
+	 * Keeps binary snapshots of parsed configurations in the specified directory, see {@link SnapshotStore}.
+	 * <p>
+	 * {@link #read(Class, String)} and {@link #readMap(String)} then load the snapshot instead of
+	 * parsing the YAML whenever the file's contents are unchanged since the snapshot was taken.
+	 * Only {@code Serializable} types are snapshotted.
+	 * 
+	 * @param directory the snapshot directory; or null to disable snapshots
+	 * @return this finder
+	 */
+	public ConfigurationFinder useSnapshots(File directory) {
+		this.snapshots = (directory != null) ? new SnapshotStore(directory) : null;
+		return this;
+	}
+	
 	/**
 	 * Attempts to locate the configuration file, parse it, and return it to the caller.
 	 * 
@@ -89,9 +123,32 @@ public class ConfigurationFinder {
 	 * @param filename
 	 * @return
 	 */
-	public <T> T read(Class<T> classType, String filename) {		
+	public <T> T read(final Class<T> classType, final String filename) {
+		if (cache != null) {
+			return cache.get(paths, filename, "yaml:" + classType.getName(), classType, new ConfigurationParser<T>() {
+				public T parse(String content) {
+					return parseYaml(classType, filename, content);
+				}
+			});
+		}
+		
 		String yaml = getConfiguration(filename);		
-		T result = YamlParser.parse(classType, yaml);
+		T result = parseYaml(classType, filename, yaml);
+		
+		return result;
+	}
+	
+	private <T> T parseYaml(Class<T> classType, String filename, String yaml) {
+		SnapshotStore store = snapshots;
+		if (store == null)
+			return YamlParser.parse(classType, yaml);
+		
+		String hash = Digests.sha1(yaml);
+		T result = store.load(filename, classType, hash);
+		if (result == null) {
+			result = YamlParser.parse(classType, yaml);
+			store.store(filename, classType, hash, result);
+		}
 		
 		return result;
 	}
@@ -102,9 +159,101 @@ public class ConfigurationFinder {
 	 * @param filename
 	 * @return
 	 */
-	public Map<String,String> readMap(String filename) {
+	public Map<String,String> readMap(final String filename) {
+		if (cache != null) {
+			Map<String,String> cached = cache.get(paths, filename, "map", Map.class, new ConfigurationParser<Map<String,String>>() {
+				public Map<String,String> parse(String content) {
+					return parseMap(filename, content);
+				}
+			});
+			return new HashMap<String,String>(cached);
+		}
+		
+		String yaml = getConfiguration(filename);
+		return parseMap(filename, yaml);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<String,String> parseMap(String filename, String yaml) {
+		SnapshotStore store = snapshots;
+		if (store == null)
+			return YamlParser.parseToMap(yaml);
+		
+		String hash = Digests.sha1(yaml);
+		Map<String,String> result = store.load(filename, HashMap.class, hash);
+		if (result == null) {
+			result = YamlParser.parseToMap(yaml);
+			store.store(filename, HashMap.class, hash, result);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Reads the specified yaml filename as a typed view with dotted keys for nested maps,
+	 * see {@link ConfigView}. Views are immutable; with a cache the same view is shared.
+	 * 
+	 * @param filename
+	 * @return
+	 */
+	public ConfigView readView(String filename) {
+		if (cache != null) {
+			return cache.get(paths, filename, "view", ConfigView.class, new ConfigurationParser<ConfigView>() {
+				public ConfigView parse(String content) {
+					return new ConfigView(YamlParser.parse(Map.class, content));
+				}
+			});
+		}
+		
 		String yaml = getConfiguration(filename);
-		return YamlParser.parseToMap(yaml);
+		return new ConfigView(YamlParser.parse(Map.class, yaml));
+	}
+	
+	/**
+	 * Reads every copy of the specified yaml filename found along the search paths and
+	 * deep-merges them into one view, the first location found taking precedence.
+	 * 
+	 * @param filename
+	 * @return
+	 * @see #readMerged(String, MergePrecedence)
+	 */
+	public ConfigView readMerged(String filename) {
+		return readMerged(filename, MergePrecedence.FIRST_FOUND);
+	}
+	
+	/**
+	 * Reads every copy of the specified yaml filename found along the search paths and
+	 * deep-merges them into one view. Nested maps are merged key by key; any other value
+	 * of the winning file replaces the others. {@link ConfigView#getSource(String)} reports
+	 * which file each key came from.
+	 * <p>
+	 * Merged views are not kept by a {@link ConfigurationCache}, but the located files are
+	 * remembered by {@link Resources} for its cache time-to-live.
+	 * 
+	 * @param filename
+	 * @param precedence which location wins when a key is found in several files
+	 * @return
+	 */
+	public ConfigView readMerged(String filename, MergePrecedence precedence) {
+		List<ResolvedResource> found = Resources.findResources(filename, paths);
+		if (found.isEmpty())
+			throw new IllegalArgumentException("Could not find the " + filename + " file in any location. Locations checked:" + paths.toString());
+		
+		// merge from the lowest precedence up
+		if (precedence == MergePrecedence.FIRST_FOUND)
+			Collections.reverse(found);
+		
+		List<Map<?,?>> documents = new ArrayList<Map<?,?>>();
+		List<String> sources = new ArrayList<String>();
+		for (ResolvedResource resource : found) {
+			Map<?,?> document = YamlParser.parse(Map.class, resource.getContent());
+			if (document != null) {
+				documents.add(document);
+				sources.add(resource.getLocation());
+			}
+		}
+		
+		return ConfigView.merge(documents, sources);
 	}
 	
 	/**
@@ -114,19 +263,37 @@ public class ConfigurationFinder {
 	 * @return
 	 */
 	public Properties getProperties(String filename) {
+		if (cache != null) {
+			Properties cached = cache.get(paths, filename, "properties", Properties.class, new ConfigurationParser<Properties>() {
+				public Properties parse(String content) {
+					return parseProperties(content);
+				}
+			});
+			Properties copy = new Properties();
+			copy.putAll(cached);
+			return copy;
+		}
+		
 		String file = getConfiguration(filename);
 		if (file == null) 
 			throw new IllegalArgumentException("The " + filename + " could not be found in any well-defined location.");
 		
+		return parseProperties(file);
+	}
+	
+	private static Properties parseProperties(String file) {
 		InputStream is = new ByteArrayInputStream(file.getBytes());
+		long start = System.nanoTime();
 		
 		Properties properties = new Properties();			
 		try {
 			properties.load(is);
 		} catch(Exception e) {
+			ConfigurationMetrics.get().parsed(Properties.class, false, System.nanoTime() - start);
 			throw new RuntimeException(e);
 		}	
 		
+		ConfigurationMetrics.get().parsed(Properties.class, true, System.nanoTime() - start);
 		return properties;
 	}
 	
@@ -137,6 +304,9 @@ public class ConfigurationFinder {
 	 * @return
 	 */
 	public String getConfiguration(String filename) {
+		if (cache != null)
+			return cache.getContent(paths, filename);
+		
 		String yaml = Resources.findResourceAsString(filename, paths);
 		if (yaml == null) 
 			throw new IllegalArgumentException("Could not find the " + filename + " file in any location. Locations checked:" + paths.toString());
@@ -0,0 +1,18 @@
+package org.cadams.jbouquet.configuration;
+
+/**
+ * Notified by a {@link ConfigurationCache} when a cached configuration file changes on disk.
+ * 
+ * @author cta
+ *
+ * @param <T> the configuration type
+ */
+public interface ConfigurationListener<T> {
+	/**
+	 * Called on the watcher thread with the newly parsed configuration.
+	 * 
+	 * @param filename the configuration filename as passed to the {@code ConfigurationFinder}
+	 * @param configuration
+	 */
+	void configurationChanged(String filename, T configuration);
+}
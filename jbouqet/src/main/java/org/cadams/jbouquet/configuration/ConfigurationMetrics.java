@@ -0,0 +1,100 @@
+package org.cadams.jbouquet.configuration;
+
+/**
+ * Receives measurements of configuration resolution, parsing and caching.
+ *
+ * <p>
+ * Every method does nothing by default, so implementations override only what they record.
+ * Install an implementation with {@link #set(ConfigurationMetrics)}, e.g. a
+ * {@link RecordingConfigurationMetrics} or an adapter to the application's metrics library.
+ * Methods are called on the loading threads and must be cheap and thread-safe.
+ * </p>
+ *
+ * @author cta
+ */
+public abstract class ConfigurationMetrics {
+	/**
+	 * Cache of whole lookups kept by {@link Resources}.
+	 */
+	public static final String RESOLUTION_CACHE = "resolution";
+
+	/**
+	 * Cache of individual location probes kept by {@link Resources}.
+	 */
+	public static final String LOCATION_CACHE = "location";
+
+	/**
+	 * Parsed objects kept by a {@link ConfigurationCache}.
+	 */
+	public static final String CONFIGURATION_CACHE = "configuration";
+
+	private static final ConfigurationMetrics NONE = new ConfigurationMetrics() {
+	};
+
+	private static volatile ConfigurationMetrics current = NONE;
+
+	/**
+	 * Returns the installed metrics, never null.
+	 */
+	public static ConfigurationMetrics get() {
+		return current;
+	}
+
+	/**
+	 * Installs the metrics receiving every measurement from now on.
+	 *
+	 * @param metrics the metrics; or null to stop recording
+	 */
+	public static void set(ConfigurationMetrics metrics) {
+		current = (metrics != null) ? metrics : NONE;
+	}
+
+	/**
+	 * A lookup of a resource along a list of search paths completed.
+	 *
+	 * @param name the resource name, i.e. the format replacement
+	 * @param found
+	 * @param nanos time taken, including every probe
+	 */
+	public void resolved(String name, boolean found, long nanos) {
+	}
+
+	/**
+	 * A single location was checked for a resource, bypassing the caches.
+	 *
+	 * @param location
+	 * @param found
+	 * @param bytes the length of the contents read, 0 if not found
+	 * @param nanos
+	 */
+	public void probed(String location, boolean found, long bytes, long nanos) {
+	}
+
+	/**
+	 * A configuration document was parsed.
+	 *
+	 * @param type the target type
+	 * @param success false if parsing failed
+	 * @param nanos
+	 */
+	public void parsed(Class<?> type, boolean success, long nanos) {
+	}
+
+	/**
+	 * A cache was consulted.
+	 *
+	 * @param cache one of {@link #RESOLUTION_CACHE}, {@link #LOCATION_CACHE} or {@link #CONFIGURATION_CACHE}
+	 * @param hit
+	 */
+	public void cacheLookup(String cache, boolean hit) {
+	}
+
+	/**
+	 * A changed configuration file was reloaded and its cached objects re-parsed.
+	 *
+	 * @param location
+	 * @param nanos
+	 */
+	public void reloaded(String location, long nanos) {
+	}
+}
@@ -0,0 +1,12 @@
+package org.cadams.jbouquet.configuration;
+
+/**
+ * Turns raw configuration contents into a configuration object.
+ * 
+ * @author cta
+ *
+ * @param <T>
+ */
+interface ConfigurationParser<T> {
+	T parse(String content);
+}
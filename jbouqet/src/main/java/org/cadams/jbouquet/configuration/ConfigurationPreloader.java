@@ -0,0 +1,177 @@
+package org.cadams.jbouquet.configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves and parses a manifest of configuration files concurrently at startup.
+ *
+ * <p>
+ * Each file of the manifest is read through the finder on a bounded executor, so the path
+ * probing and parsing of dozens of files overlap instead of running one after another. The
+ * outcome is returned as a {@link ConfigurationSnapshot} holding the objects, the time each
+ * file took and the files which failed; a failing file does not stop the others.
+ * </p>
+ * <p>
+ * When the finder uses a {@link ConfigurationCache} the preload also warms the cache, so
+ * later reads of the same files return right away.
+ * </p>
+ * <p>
+ * Files whose type is {@code Properties} are read with {@link ConfigurationFinder#getProperties(String)},
+ * every other type with {@link ConfigurationFinder#read(Class, String)}.
+ * </p>
+ *
+ * @author cta
+ */
+public class ConfigurationPreloader {
+	private static final Logger logger = Logger.getLogger(ConfigurationPreloader.class.getName());
+
+	private final ConfigurationFinder finder;
+	private final Map<String, Class<?>> manifest = new LinkedHashMap<String, Class<?>>();
+
+	public ConfigurationPreloader(ConfigurationFinder finder) {
+		this.finder = finder;
+	}
+
+	/**
+	 * Adds a file to the manifest.
+	 *
+	 * @param filename
+	 * @param type
+	 * @return this preloader
+	 */
+	public ConfigurationPreloader add(String filename, Class<?> type) {
+		manifest.put(filename, type);
+		return this;
+	}
+
+	/**
+	 * Adds every filename and type of the map to the manifest.
+	 *
+	 * @param files
+	 * @return this preloader
+	 */
+	public ConfigurationPreloader addAll(Map<String, Class<?>> files) {
+		manifest.putAll(files);
+		return this;
+	}
+
+	/**
+	 * Loads the manifest on a temporary pool of at most {@code threads} threads.
+	 *
+	 * @param threads
+	 * @return
+	 */
+	public ConfigurationSnapshot preload(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, manifest.size())), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "configuration-preload-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try {
+			return preload(executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Loads the manifest on the specified executor and waits for every file.
+	 *
+	 * @param executor
+	 * @return
+	 */
+	public ConfigurationSnapshot preload(ExecutorService executor) {
+		long start = System.nanoTime();
+
+		List<Load> loads = new ArrayList<Load>(manifest.size());
+		for (Map.Entry<String, Class<?>> entry : manifest.entrySet()) {
+			Load load = new Load(entry.getKey(), entry.getValue());
+			load.future = executor.submit(load);
+			loads.add(load);
+		}
+
+		Map<String, Object> configurations = new LinkedHashMap<String, Object>();
+		Map<String, Exception> errors = new LinkedHashMap<String, Exception>();
+		boolean interrupted = false;
+		for (Load load : loads) {
+			for (;;) {
+				try {
+					configurations.put(load.filename, load.future.get());
+					break;
+				} catch(InterruptedException e) {
+					interrupted = true;
+				} catch(ExecutionException e) {
+					Throwable cause = e.getCause();
+					errors.put(load.filename, (cause instanceof Exception) ? (Exception)cause : e);
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		Collections.sort(loads, new Comparator<Load>() {
+			public int compare(Load a, Load b) {
+				return Long.compare(b.nanos, a.nanos);
+			}
+		});
+		Map<String, Long> timings = new LinkedHashMap<String, Long>();
+		for (Load load : loads) {
+			timings.put(load.filename, load.nanos);
+		}
+
+		ConfigurationSnapshot snapshot = new ConfigurationSnapshot(configurations, timings, errors, System.nanoTime() - start);
+		if (logger.isInfoEnabled()) {
+			logger.info("Preloaded " + configurations.size() + " of " + manifest.size() + " configuration files in "
+					+ snapshot.getElapsedMillis() + "ms, load times (ms): " + snapshot.getLoadTimes());
+		}
+		for (Map.Entry<String, Exception> error : errors.entrySet()) {
+			logger.warn("Could not preload " + error.getKey(), error.getValue());
+		}
+
+		return snapshot;
+	}
+
+	private class Load implements Callable<Object> {
+		private final String filename;
+		private final Class<?> type;
+		private Future<Object> future;
+		private volatile long nanos;
+
+		Load(String filename, Class<?> type) {
+			this.filename = filename;
+			this.type = type;
+		}
+
+		public Object call() {
+			long start = System.nanoTime();
+			try {
+				if (type == Properties.class)
+					return finder.getProperties(filename);
+
+				return finder.read(type, filename);
+			} finally {
+				nanos = System.nanoTime() - start;
+			}
+		}
+	}
+}
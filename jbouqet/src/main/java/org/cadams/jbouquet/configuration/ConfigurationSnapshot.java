@@ -0,0 +1,90 @@
+package org.cadams.jbouquet.configuration;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The configurations loaded by a {@link ConfigurationPreloader}, along with how long each
+ * one took and the error of each one which could not be loaded.
+ *
+ * @author cta
+ */
+public class ConfigurationSnapshot {
+	private final Map<String, Object> configurations;
+	private final Map<String, Long> loadNanos;
+	private final Map<String, Exception> errors;
+	private final long elapsedNanos;
+
+	ConfigurationSnapshot(Map<String, Object> configurations, Map<String, Long> loadNanos, Map<String, Exception> errors, long elapsedNanos) {
+		this.configurations = configurations;
+		this.loadNanos = loadNanos;
+		this.errors = errors;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * Returns the loaded configuration.
+	 *
+	 * @param filename
+	 * @param type
+	 * @return
+	 * @throws IllegalArgumentException if the file was not part of the manifest
+	 * @throws IllegalStateException if the file failed to load
+	 */
+	public <T> T get(String filename, Class<T> type) {
+		Exception error = errors.get(filename);
+		if (error != null)
+			throw new IllegalStateException("The " + filename + " configuration failed to load", error);
+		if (!configurations.containsKey(filename))
+			throw new IllegalArgumentException("The " + filename + " configuration was not preloaded");
+
+		return type.cast(configurations.get(filename));
+	}
+
+	public boolean contains(String filename) {
+		return configurations.containsKey(filename);
+	}
+
+	/**
+	 * Returns true if every file of the manifest loaded successfully.
+	 */
+	public boolean isComplete() {
+		return errors.isEmpty();
+	}
+
+	public Map<String, Exception> getErrors() {
+		return Collections.unmodifiableMap(errors);
+	}
+
+	/**
+	 * Returns how long each file took to resolve and parse, in milliseconds, slowest first.
+	 */
+	public Map<String, Long> getLoadTimes() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Long> entry : loadNanos.entrySet()) {
+			result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Returns how long the specified file took to resolve and parse, or -1 if it was not preloaded.
+	 *
+	 * @param filename
+	 * @param unit
+	 * @return
+	 */
+	public long getLoadTime(String filename, TimeUnit unit) {
+		Long nanos = loadNanos.get(filename);
+		return (nanos != null) ? unit.convert(nanos, TimeUnit.NANOSECONDS) : -1;
+	}
+
+	/**
+	 * Returns the wall clock time of the whole preload in milliseconds.
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+	}
+}
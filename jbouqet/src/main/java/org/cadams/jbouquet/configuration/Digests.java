@@ -0,0 +1,42 @@
+package org.cadams.jbouquet.configuration;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes used to detect whether configuration contents changed.
+ * 
+ * @author cta
+ */
+final class Digests {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private Digests() {
+	}
+	
+	/**
+	 * Returns the hex encoded SHA-1 of the UTF-8 encoded text.
+	 * 
+	 * @param text
+	 * @return
+	 */
+	static String sha1(String text) {
+		return sha1(text.getBytes(UTF8));
+	}
+	
+	static String sha1(byte [] data) {
+		try {
+			byte [] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			char [] result = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				result[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+				result[i * 2 + 1] = HEX[digest[i] & 0xf];
+			}
+			return new String(result);
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package org.cadams.jbouquet.configuration;
+
+/**
+ * Decides which file wins when {@link ConfigurationFinder#readMerged(String, MergePrecedence)}
+ * finds the same key in several locations of the search path.
+ * 
+ * @author cta
+ */
+public enum MergePrecedence {
+	/**
+	 * The first location in the search path wins, i.e. the file {@link ConfigurationFinder#read(Class, String)}
+	 * would return overrides the others. The {@code eds.config} and additional paths override the
+	 * global ones.
+	 */
+	FIRST_FOUND,
+	
+	/**
+	 * The last location in the search path wins, so a per-host {@code ./} file overrides the
+	 * {@code /etc/jbouquet} defaults.
+	 */
+	LAST_FOUND
+}
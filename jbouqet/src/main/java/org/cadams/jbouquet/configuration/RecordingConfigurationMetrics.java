@@ -0,0 +1,304 @@
+package org.cadams.jbouquet.configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link ConfigurationMetrics} which keeps counters and latency histograms in memory.
+ *
+ * <p>
+ * Measurements are kept per location, per parsed type and per cache; {@link #report()}
+ * summarizes them, slowest first, for logging at the end of startup.
+ * </p>
+ *
+ * @author cta
+ */
+public class RecordingConfigurationMetrics extends ConfigurationMetrics {
+	private final Histogram resolutions = new Histogram();
+	private final AtomicLong resolutionMisses = new AtomicLong();
+	private final Histogram reloads = new Histogram();
+	private final ConcurrentMap<String, LocationStats> locations = new ConcurrentHashMap<String, LocationStats>();
+	private final ConcurrentMap<String, ParseStats> parses = new ConcurrentHashMap<String, ParseStats>();
+	private final ConcurrentMap<String, CacheStats> caches = new ConcurrentHashMap<String, CacheStats>();
+
+	@Override
+	public void resolved(String name, boolean found, long nanos) {
+		resolutions.record(nanos);
+		if (!found)
+			resolutionMisses.incrementAndGet();
+	}
+
+	@Override
+	public void probed(String location, boolean found, long bytes, long nanos) {
+		LocationStats stats = locations.get(location);
+		if (stats == null) {
+			LocationStats created = new LocationStats();
+			stats = locations.putIfAbsent(location, created);
+			if (stats == null)
+				stats = created;
+		}
+
+		(found ? stats.hits : stats.misses).incrementAndGet();
+		stats.bytes.addAndGet(bytes);
+		stats.latency.record(nanos);
+	}
+
+	@Override
+	public void parsed(Class<?> type, boolean success, long nanos) {
+		ParseStats stats = parses.get(type.getName());
+		if (stats == null) {
+			ParseStats created = new ParseStats();
+			stats = parses.putIfAbsent(type.getName(), created);
+			if (stats == null)
+				stats = created;
+		}
+
+		stats.latency.record(nanos);
+		if (!success)
+			stats.failures.incrementAndGet();
+	}
+
+	@Override
+	public void cacheLookup(String cache, boolean hit) {
+		CacheStats stats = caches.get(cache);
+		if (stats == null) {
+			CacheStats created = new CacheStats();
+			stats = caches.putIfAbsent(cache, created);
+			if (stats == null)
+				stats = created;
+		}
+
+		(hit ? stats.hits : stats.misses).incrementAndGet();
+	}
+
+	@Override
+	public void reloaded(String location, long nanos) {
+		reloads.record(nanos);
+	}
+
+	/**
+	 * Returns the latency of every lookup along search paths.
+	 */
+	public Histogram getResolutions() {
+		return resolutions;
+	}
+
+	public long getResolutionMisses() {
+		return resolutionMisses.get();
+	}
+
+	public Histogram getReloads() {
+		return reloads;
+	}
+
+	public Map<String, LocationStats> getLocations() {
+		return Collections.unmodifiableMap(locations);
+	}
+
+	/**
+	 * Returns the parse statistics keyed by the target class name.
+	 */
+	public Map<String, ParseStats> getParses() {
+		return Collections.unmodifiableMap(parses);
+	}
+
+	/**
+	 * Returns the hits divided by the lookups of the specified cache, or 0 if it was never used.
+	 *
+	 * @param cache e.g. {@link ConfigurationMetrics#CONFIGURATION_CACHE}
+	 * @return
+	 */
+	public double getCacheHitRatio(String cache) {
+		CacheStats stats = caches.get(cache);
+		if (stats == null)
+			return 0;
+
+		long hits = stats.hits.get();
+		long total = hits + stats.misses.get();
+		return (total > 0) ? (double)hits / total : 0;
+	}
+
+	public long getCacheHits(String cache) {
+		CacheStats stats = caches.get(cache);
+		return (stats != null) ? stats.hits.get() : 0;
+	}
+
+	public long getCacheMisses(String cache) {
+		CacheStats stats = caches.get(cache);
+		return (stats != null) ? stats.misses.get() : 0;
+	}
+
+	/**
+	 * Summarizes the measurements, listing locations and types by total time, slowest first.
+	 */
+	public String report() {
+		StringBuilder result = new StringBuilder();
+		result.append("resolutions: ").append(resolutions).append(", misses=").append(getResolutionMisses()).append('\n');
+		result.append("reloads: ").append(reloads).append('\n');
+
+		result.append("caches:");
+		for (Map.Entry<String, CacheStats> entry : new TreeMap<String, CacheStats>(caches).entrySet()) {
+			result.append(' ').append(entry.getKey()).append('=').append(String.format("%.1f%%", 100 * getCacheHitRatio(entry.getKey())))
+				.append(" (").append(entry.getValue().hits.get() + entry.getValue().misses.get()).append(" lookups)");
+		}
+		result.append('\n');
+
+		for (Map.Entry<String, ParseStats> entry : sortByTotal(parses)) {
+			result.append("parse ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+		for (Map.Entry<String, LocationStats> entry : sortByTotal(locations)) {
+			result.append("probe ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+
+		return result.toString();
+	}
+
+	@Override
+	public String toString() {
+		return report();
+	}
+
+	private static <T extends Timed> List<Map.Entry<String, T>> sortByTotal(Map<String, T> stats) {
+		List<Map.Entry<String, T>> sorted = new ArrayList<Map.Entry<String, T>>(stats.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<String, T>>() {
+			public int compare(Map.Entry<String, T> a, Map.Entry<String, T> b) {
+				return Long.compare(b.getValue().getLatency().getTotalNanos(), a.getValue().getLatency().getTotalNanos());
+			}
+		});
+		return sorted;
+	}
+
+	private interface Timed {
+		Histogram getLatency();
+	}
+
+	public static class LocationStats implements Timed {
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final Histogram latency = new Histogram();
+
+		public long getHits() {
+			return hits.get();
+		}
+
+		public long getMisses() {
+			return misses.get();
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		public Histogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hits + ", misses=" + misses + ", bytes=" + bytes + ", " + latency;
+		}
+	}
+
+	public static class ParseStats implements Timed {
+		private final AtomicLong failures = new AtomicLong();
+		private final Histogram latency = new Histogram();
+
+		public long getFailures() {
+			return failures.get();
+		}
+
+		public Histogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return latency + ", failures=" + failures;
+		}
+	}
+
+	private static class CacheStats {
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+	}
+
+	/**
+	 * Latency histogram with power-of-two nanosecond buckets, so percentiles are accurate
+	 * to within a factor of two. Recording is lock-free.
+	 */
+	public static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long nanos) {
+			nanos = Math.max(0, nanos);
+			// bucket i holds [2^(i-1), 2^i - 1]
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+			count.incrementAndGet();
+			total.addAndGet(nanos);
+
+			long current;
+			while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return total.get();
+		}
+
+		public long getMaxNanos() {
+			return max.get();
+		}
+
+		public long getMeanNanos() {
+			long n = count.get();
+			return (n > 0) ? total.get() / n : 0;
+		}
+
+		/**
+		 * Returns an upper bound of the specified percentile.
+		 *
+		 * @param percentile between 0 and 100
+		 * @return
+		 */
+		public long getPercentileNanos(double percentile) {
+			long n = count.get();
+			if (n == 0)
+				return 0;
+
+			long rank = (long)Math.ceil(n * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < 64; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return Math.min((1L << i) - 1, max.get());
+			}
+			return max.get();
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + getCount()
+					+ ", total=" + TimeUnit.NANOSECONDS.toMillis(getTotalNanos()) + "ms"
+					+ ", mean=" + TimeUnit.NANOSECONDS.toMicros(getMeanNanos()) + "us"
+					+ ", p99<=" + TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(99)) + "us"
+					+ ", max=" + TimeUnit.NANOSECONDS.toMicros(getMaxNanos()) + "us";
+		}
+	}
+}
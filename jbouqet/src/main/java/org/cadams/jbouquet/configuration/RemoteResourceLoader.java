@@ -0,0 +1,526 @@
+package org.cadams.jbouquet.configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.cadams.jbouquet.file.AtomicWriter;
+
+/**
+ * Loads http and https resources in the background and keeps them in memory and on disk.
+ *
+ * <p>
+ * A copy younger than the max age is returned as is. An older copy, up to the max age plus
+ * the max stale time, is still returned immediately while a conditional request
+ * ({@code If-None-Match} / {@code If-Modified-Since}) revalidates it in the background. Only
+ * when there is no usable copy does the caller wait for the server, bounded by the connect
+ * and read timeouts. If that request fails, an expired copy is returned rather than
+ * nothing. Copies are written to the cache directory, so after a restart the service
+ * starts from the last known contents instead of waiting for the server.
+ * </p>
+ * <p>
+ * Concurrent requests for the same URL share a single fetch. A 404 or 410 response removes
+ * the cached copy and reports the resource as missing.
+ * </p>
+ * <p>
+ * Remote configuration often holds credentials, so a cache directory created by the
+ * loader is only accessible to its owner.
+ * </p>
+ *
+ * @author cta
+ */
+public class RemoteResourceLoader implements Closeable {
+	private static final Logger logger = Logger.getLogger(RemoteResourceLoader.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+	private final File directory;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, FutureTask<Entry>> fetches = new ConcurrentHashMap<String, FutureTask<Entry>>();
+	private final ThreadPoolExecutor executor;
+
+	private volatile int connectTimeout = 2000;
+	private volatile int readTimeout = 5000;
+	private volatile long maxAge = 60000;
+	private volatile long maxStale = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * @param directory the on-disk cache; or null to only cache in memory
+	 */
+	public RemoteResourceLoader(File directory) {
+		this(directory, 4);
+	}
+
+	/**
+	 * @param directory the on-disk cache; or null to only cache in memory
+	 * @param threads the maximum number of concurrent fetches
+	 */
+	public RemoteResourceLoader(File directory, int threads) {
+		this.directory = directory;
+
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "remote-resource-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns a cache directory under the temporary directory private to the current user,
+	 * creating it if needed. Other users can write to the temporary directory, so an existing
+	 * directory is refused unless it is owned by the current user and closed to everyone else.
+	 *
+	 * @return the directory, or null if it could not be created or is not safe to use
+	 */
+	public static File getDefaultDirectory() {
+		String user = System.getProperty("user.name", "unknown").replaceAll("[^A-Za-z0-9._-]", "_");
+		File directory = new File(System.getProperty("java.io.tmpdir"), "jbouquet-resources-" + user);
+		Path path = directory.toPath();
+		try {
+			createPrivateDirectory(path);
+			if (!isPrivateDirectory(path)) {
+				logger.warn("Not caching remote resources in " + directory + ", it is not a directory private to " + System.getProperty("user.name"));
+				return null;
+			}
+			return directory;
+		} catch(IOException | UnsupportedOperationException e) {
+			logger.warn("Not caching remote resources in " + directory + ", it could not be checked", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the path is a directory owned by the current user and closed to everyone
+	 * else, or any directory on file systems without POSIX permissions.
+	 */
+	static boolean isPrivateDirectory(Path path) throws IOException {
+		if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+			return false;
+		if (!path.getFileSystem().supportedFileAttributeViews().contains("posix"))
+			return true;
+
+		UserPrincipal current = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+		return current.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS))
+				&& OWNER_ONLY.containsAll(Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS));
+	}
+
+	/**
+	 * Creates the directory, closed to everyone but its owner on POSIX file systems, unless it exists.
+	 */
+	static void createPrivateDirectory(Path path) throws IOException {
+		if (Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+			return;
+
+		Files.createDirectories(path.toAbsolutePath().getParent());
+		try {
+			if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+				Files.createDirectory(path, PosixFilePermissions.asFileAttribute(EnumSet.copyOf(OWNER_ONLY)));
+			} else {
+				Files.createDirectory(path);
+			}
+		} catch(FileAlreadyExistsException ignore) {}
+	}
+
+	public void setConnectTimeout(int millis) {
+		this.connectTimeout = millis;
+	}
+
+	public void setReadTimeout(int millis) {
+		this.readTimeout = millis;
+	}
+
+	/**
+	 * Sets how long a copy is used without asking the server.
+	 *
+	 * @param millis
+	 */
+	public void setMaxAge(long millis) {
+		this.maxAge = millis;
+	}
+
+	/**
+	 * Sets how long past its max age a copy is still returned while it is revalidated in the background.
+	 *
+	 * @param millis
+	 */
+	public void setMaxStale(long millis) {
+		this.maxStale = millis;
+	}
+
+	/**
+	 * Returns the contents of the URL, waiting for the server only if there is no usable copy.
+	 *
+	 * @param url
+	 * @return the contents, or null if the server reports the resource does not exist
+	 * @throws IOException if the resource could not be fetched and no copy is cached
+	 */
+	public String get(String url) throws IOException {
+		Entry entry = lookup(url);
+		if (entry != null) {
+			long age = System.currentTimeMillis() - entry.fetchedAt;
+			if (age <= maxAge)
+				return entry.getText();
+			if (age <= maxAge + maxStale) {
+				refresh(url);
+				return entry.getText();
+			}
+		}
+
+		try {
+			Entry fetched = await(refresh(url));
+			return (fetched != null) ? fetched.getText() : null;
+		} catch(IOException e) {
+			if (entry == null)
+				throw e;
+
+			logger.warn("Could not revalidate " + url + ", using the copy fetched at " + new Date(entry.fetchedAt), e);
+			return entry.getText();
+		}
+	}
+
+	/**
+	 * Returns the contents of the URL without blocking. The future is already complete
+	 * when a usable copy is cached.
+	 *
+	 * @param url
+	 * @return
+	 */
+	public Future<String> getAsync(final String url) {
+		final Entry entry = lookup(url);
+		if (entry == null || System.currentTimeMillis() - entry.fetchedAt > maxAge + maxStale)
+			return new TextFuture(url, refresh(url), entry);
+
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			public String call() throws IOException {
+				return get(url);
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	/**
+	 * Returns the size in bytes of the copy of the URL held in memory, or -1 if there is none.
+	 *
+	 * @param url
+	 * @return
+	 */
+	long getCachedLength(String url) {
+		Entry entry = entries.get(url);
+		return (entry != null) ? entry.body.length : -1;
+	}
+
+	/**
+	 * Drops the cached copy of the URL, in memory and on disk.
+	 *
+	 * @param url
+	 */
+	public void invalidate(String url) {
+		entries.remove(url);
+		if (directory != null) {
+			getBodyFile(url).delete();
+			getMetaFile(url).delete();
+		}
+	}
+
+	/**
+	 * Stops the background fetches. Cached copies remain available.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private Entry lookup(String url) {
+		Entry entry = entries.get(url);
+		if (entry == null && directory != null) {
+			entry = readCopy(url);
+			if (entry != null) {
+				Entry existing = entries.putIfAbsent(url, entry);
+				if (existing != null)
+					entry = existing;
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Starts a fetch of the URL unless one is already running.
+	 */
+	private Future<Entry> refresh(final String url) {
+		FutureTask<Entry> task = fetches.get(url);
+		if (task != null)
+			return task;
+
+		FutureTask<Entry> created = new FutureTask<Entry>(new Callable<Entry>() {
+			public Entry call() throws IOException {
+				try {
+					return fetch(url, entries.get(url));
+				} finally {
+					fetches.remove(url);
+				}
+			}
+		});
+		task = fetches.putIfAbsent(url, created);
+		if (task != null)
+			return task;
+
+		try {
+			executor.execute(created);
+		} catch(RejectedExecutionException e) {
+			// closed: a task left in fetches would never complete, so fetch on the caller instead
+			created.run();
+		}
+		return created;
+	}
+
+	private Entry await(Future<Entry> future) throws IOException {
+		try {
+			// the fetch itself is bounded by the timeouts; this also bounds the wait for a busy executor
+			return future.get(connectTimeout + 2L * readTimeout, TimeUnit.MILLISECONDS);
+		} catch(ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} catch(TimeoutException e) {
+			throw new IOException("Timed out waiting for the fetch", e);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the fetch", e);
+		}
+	}
+
+	private Entry fetch(String url, Entry previous) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setUseCaches(false);
+		if (previous != null) {
+			if (previous.etag != null)
+				connection.setRequestProperty("If-None-Match", previous.etag);
+			if (previous.lastModified != null)
+				connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+		}
+
+		int status = connection.getResponseCode();
+		if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+			closeQuietly(connection.getErrorStream());
+			return store(url, new Entry(previous.body, previous.charset, previous.etag, previous.lastModified, System.currentTimeMillis()));
+		}
+		if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+			closeQuietly(connection.getErrorStream());
+			invalidate(url);
+			return null;
+		}
+		if (status != HttpURLConnection.HTTP_OK) {
+			closeQuietly(connection.getErrorStream());
+			throw new IOException("Unexpected HTTP status " + status + " fetching " + url);
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		InputStream is = connection.getInputStream();
+		try {
+			IOUtils.copy(is, body);
+		} finally {
+			is.close();
+		}
+
+		return store(url, new Entry(body.toByteArray(), getCharset(connection.getContentType()),
+				connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), System.currentTimeMillis()));
+	}
+
+	private Entry store(String url, Entry entry) {
+		entries.put(url, entry);
+		if (directory == null)
+			return entry;
+
+		try {
+			Properties meta = new Properties();
+			meta.setProperty("url", url);
+			meta.setProperty("charset", entry.charset);
+			meta.setProperty("fetched", Long.toString(entry.fetchedAt));
+			if (entry.etag != null)
+				meta.setProperty("etag", entry.etag);
+			if (entry.lastModified != null)
+				meta.setProperty("last-modified", entry.lastModified);
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			meta.store(data, null);
+
+			createPrivateDirectory(directory.toPath());
+			AtomicWriter.write(getBodyFile(url), entry.body, false);
+			AtomicWriter.write(getMetaFile(url), data.toByteArray(), false);
+		} catch(IOException e) {
+			logger.warn("Could not write the cached copy of " + url + " to " + directory, e);
+		}
+		return entry;
+	}
+
+	private Entry readCopy(String url) {
+		File metaFile = getMetaFile(url);
+		File bodyFile = getBodyFile(url);
+		if (!metaFile.isFile() || !bodyFile.isFile())
+			return null;
+
+		try {
+			Properties meta = new Properties();
+			InputStream is = new FileInputStream(metaFile);
+			try {
+				meta.load(is);
+			} finally {
+				is.close();
+			}
+			if (!url.equals(meta.getProperty("url")))
+				return null;
+
+			byte [] body = FileUtils.readFileToByteArray(bodyFile);
+			return new Entry(body, meta.getProperty("charset", "UTF-8"), meta.getProperty("etag"),
+					meta.getProperty("last-modified"), Long.parseLong(meta.getProperty("fetched", "0")));
+		} catch(IOException | NumberFormatException e) {
+			logger.warn("Ignoring the unreadable cached copy of " + url, e);
+			return null;
+		}
+	}
+
+	private File getBodyFile(String url) {
+		return new File(directory, Digests.sha1(url) + ".body");
+	}
+
+	private File getMetaFile(String url) {
+		return new File(directory, Digests.sha1(url) + ".meta");
+	}
+
+	private static String getCharset(String contentType) {
+		if (contentType != null) {
+			for (String parameter : contentType.split(";")) {
+				parameter = parameter.trim();
+				if (parameter.toLowerCase().startsWith("charset="))
+					return parameter.substring("charset=".length()).replace("\"", "");
+			}
+		}
+		return UTF8.name();
+	}
+
+	private static void closeQuietly(InputStream is) {
+		try {
+			if (is != null)
+				is.close();
+		} catch(IOException ignore) {}
+	}
+
+	/**
+	 * The text of a pending fetch, falling back to an expired copy if the fetch fails.
+	 */
+	private static class TextFuture implements Future<String> {
+		private final String url;
+		private final Future<Entry> fetch;
+		private final Entry expired;
+
+		TextFuture(String url, Future<Entry> fetch, Entry expired) {
+			this.url = url;
+			this.fetch = fetch;
+			this.expired = expired;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return fetch.isDone();
+		}
+
+		public String get() throws InterruptedException, ExecutionException {
+			try {
+				return getText(fetch.get());
+			} catch(ExecutionException e) {
+				return fallback(e);
+			}
+		}
+
+		public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			try {
+				return getText(fetch.get(timeout, unit));
+			} catch(ExecutionException e) {
+				return fallback(e);
+			}
+		}
+
+		private static String getText(Entry entry) {
+			return (entry != null) ? entry.getText() : null;
+		}
+
+		private String fallback(ExecutionException e) throws ExecutionException {
+			if (expired == null)
+				throw e;
+
+			logger.warn("Could not revalidate " + url + ", using the copy fetched at " + new Date(expired.fetchedAt), e.getCause());
+			return expired.getText();
+		}
+	}
+
+	private static class Entry {
+		private final byte [] body;
+		private final String charset;
+		private final String etag;
+		private final String lastModified;
+		private final long fetchedAt;
+
+		Entry(byte [] body, String charset, String etag, String lastModified, long fetchedAt) {
+			this.body = body;
+			this.charset = charset;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.fetchedAt = fetchedAt;
+		}
+
+		String getText() {
+			try {
+				return new String(body, Charset.forName(charset));
+			} catch(IllegalArgumentException e) {
+				return new String(body, UTF8);
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.cadams.jbouquet.configuration;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time-limited memory of resource lookups used by {@link Resources#findResource(String, List)}.
+ *
+ * <p>
+ * Two levels are kept. The outcome of a whole lookup (format replacement and search paths)
+ * is remembered so that repeating it is a single map lookup. The outcome of probing each
+ * individual location, hit or miss, is remembered as well, so different search paths which
+ * share locations (every {@code ConfigurationFinder} shares the global paths) probe each of
+ * them at most once per time-to-live.
+ * </p>
+ *
+ * @author cta
+ */
+final class ResolutionCache {
+	private static final int PURGE_THRESHOLD = 4096;
+
+	/**
+	 * Remembers a location which did not exist.
+	 */
+	private static final ResolvedResource MISS = new ResolvedResource(null, null, null);
+
+	private final ConcurrentMap<String, Cached> lookups = new ConcurrentHashMap<String, Cached>();
+	private final ConcurrentMap<String, Cached> locations = new ConcurrentHashMap<String, Cached>();
+	private volatile long ttlNanos;
+
+	ResolutionCache(long ttlMillis) {
+		setTtl(ttlMillis);
+	}
+
+	void setTtl(long ttlMillis) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+		clear();
+	}
+
+	long getTtl() {
+		return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+	}
+
+	boolean isEnabled() {
+		return ttlNanos > 0;
+	}
+
+	static String lookupKey(String formatReplacement, List<String> pathsToCheck) {
+		return formatReplacement + "|" + pathsToCheck;
+	}
+
+	/**
+	 * Returns the cached outcome of a lookup: the resource, {@link #MISS} or null if unknown.
+	 */
+	ResolvedResource getLookup(String key) {
+		return get(lookups, key);
+	}
+
+	void putLookup(String key, ResolvedResource resource) {
+		put(lookups, key, resource);
+	}
+
+	/**
+	 * Returns the cached outcome of probing a location: the resource, {@link #MISS} or null if unknown.
+	 */
+	ResolvedResource getLocation(String location) {
+		return get(locations, location);
+	}
+
+	void putLocation(String location, ResolvedResource resource) {
+		put(locations, location, resource);
+	}
+
+	static boolean isMiss(ResolvedResource resource) {
+		return resource == MISS;
+	}
+
+	static ResolvedResource miss() {
+		return MISS;
+	}
+
+	/**
+	 * Forgets the specified location and every lookup which may have depended on it.
+	 */
+	void invalidate(String location) {
+		locations.remove(location);
+		lookups.clear();
+	}
+
+	void clear() {
+		lookups.clear();
+		locations.clear();
+	}
+
+	private ResolvedResource get(ConcurrentMap<String, Cached> map, String key) {
+		if (ttlNanos <= 0)
+			return null;
+
+		Cached cached = map.get(key);
+		if (cached == null)
+			return null;
+		if (System.nanoTime() - cached.expiresAt > 0) {
+			map.remove(key, cached);
+			return null;
+		}
+
+		return cached.resource;
+	}
+
+	private void put(ConcurrentMap<String, Cached> map, String key, ResolvedResource resource) {
+		long ttl = ttlNanos;
+		if (ttl <= 0)
+			return;
+
+		long now = System.nanoTime();
+		if (map.size() >= PURGE_THRESHOLD)
+			purge(map, now);
+
+		map.put(key, new Cached(resource, now + ttl));
+	}
+
+	private static void purge(ConcurrentMap<String, Cached> map, long now) {
+		for (Iterator<Cached> iterator = map.values().iterator(); iterator.hasNext();) {
+			if (now - iterator.next().expiresAt > 0)
+				iterator.remove();
+		}
+	}
+
+	private static class Cached {
+		private final ResolvedResource resource;
+		private final long expiresAt;
+
+		Cached(ResolvedResource resource, long expiresAt) {
+			this.resource = resource;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package org.cadams.jbouquet.configuration;
+
+import java.io.File;
+
+/**
+ * A resource located by {@link Resources#findResource(String, java.util.List)}: the
+ * location which matched and the contents read from it.
+ *
+ * @author cta
+ */
+public class ResolvedResource {
+	private final String location;
+	private final String content;
+	private final File file;
+
+	public ResolvedResource(String location, String content, File file) {
+		this.location = location;
+		this.content = content;
+		this.file = file;
+	}
+
+	/**
+	 * Returns the location which matched, after the format replacement.
+	 */
+	public String getLocation() {
+		return location;
+	}
+
+	public String getContent() {
+		return content;
+	}
+
+	/**
+	 * Returns the file the resource was read from, or null if it did not come from the
+	 * file system (classpath or URL resources).
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public String toString() {
+		return location;
+	}
+}
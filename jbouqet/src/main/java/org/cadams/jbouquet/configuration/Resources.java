@@ -1,11 +1,14 @@
 package org.cadams.jbouquet.configuration;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
@@ -15,6 +18,7 @@ import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.util.ClassUtils;
+import org.springframework.util.ResourceUtils;
 
 /**
  * <p>
@@ -33,6 +37,11 @@ import org.springframework.util.ClassUtils;
  * </p>
  * 
  * <p>
+ * http and https locations are loaded through a {@link RemoteResourceLoader}, which keeps
+ * a local copy and revalidates it in the background; see {@link #setRemoteLoader(RemoteResourceLoader)}.
+ * </p>
+ * 
+ * <p>
  * This class replaces the {@code com.emaildatasource.eds.java.helper.ResourceLoader} implementation.
  * </p>
  * 
@@ -52,6 +61,86 @@ public class Resources {
 	 */
 	public static final String CLASSLOADER_PREFIX = "classpath:";
 	
+	/**
+	 * JVM argument overriding how long {@link #findResource(String, List)} remembers its results,
+	 * in milliseconds. 0 disables the cache.
+	 */
+	public static final String CACHE_TTL_PROPERTY = "jbouquet.resources.ttl";
+	
+	/**
+	 * Default time in milliseconds that lookups and probes are remembered.
+	 */
+	public static final long DEFAULT_CACHE_TTL = 5000;
+	
+	/**
+	 * JVM argument overriding the directory where the default {@link RemoteResourceLoader}
+	 * keeps its copies of remote resources.
+	 */
+	public static final String REMOTE_CACHE_PROPERTY = "jbouquet.resources.cache";
+	
+	/**
+	 * JVM argument setting how many location probes are performed per DEBUG log line, 1 logging every probe.
+	 */
+	public static final String LOG_SAMPLE_PROPERTY = "jbouquet.resources.logSample";
+	
+	private static final ResolutionCache cache = new ResolutionCache(Long.getLong(CACHE_TTL_PROPERTY, DEFAULT_CACHE_TTL));
+	
+	private static final long logSample = Math.max(1, Long.getLong(LOG_SAMPLE_PROPERTY, 100));
+	private static final AtomicLong probes = new AtomicLong();
+	
+	private static RemoteResourceLoader remoteLoader;
+	
+	/**
+	 * Returns the loader used for http and https locations. Unless one was set, a loader
+	 * caching in the {@value #REMOTE_CACHE_PROPERTY} directory, or else in a directory under
+	 * the temporary directory private to the current user, is created on first use. See
+	 * {@link RemoteResourceLoader#getDefaultDirectory()}.
+	 * 
+	 * @return
+	 */
+	public static synchronized RemoteResourceLoader getRemoteLoader() {
+		if (remoteLoader == null) {
+			String directory = System.getProperty(REMOTE_CACHE_PROPERTY);
+			remoteLoader = new RemoteResourceLoader((directory != null) ? new File(directory) : RemoteResourceLoader.getDefaultDirectory());
+		}
+		
+		return remoteLoader;
+	}
+	
+	public static synchronized void setRemoteLoader(RemoteResourceLoader loader) {
+		remoteLoader = loader;
+	}
+	
+	/**
+	 * Sets how long, in milliseconds, the outcome of {@link #findResource(String, List)} and of each
+	 * location it probes is remembered. Changing it clears the cache; 0 disables caching.
+	 * 
+	 * @param ttlMillis
+	 */
+	public static void setCacheTtl(long ttlMillis) {
+		cache.setTtl(ttlMillis);
+	}
+	
+	public static long getCacheTtl() {
+		return cache.getTtl();
+	}
+	
+	/**
+	 * Forgets every remembered lookup.
+	 */
+	public static void clearCache() {
+		cache.clear();
+	}
+	
+	/**
+	 * Forgets the remembered outcome of the specified location, e.g. after it changed on disk.
+	 * 
+	 * @param location
+	 */
+	public static void invalidate(String location) {
+		cache.invalidate(location);
+	}
+	
 	/**
 	 * Returns a File containing the resource information.
 	 * 
@@ -88,8 +177,19 @@ public class Resources {
 	 * @return
 	 */
 	public static String getResourceAsString(String location) {
-		Resource resource = getResource(location);
-		String result = null;
+		if (isRemote(location))
+			return getRemoteResourceAsString(location);
+		
+		return getResourceAsString(getResource(location));
+	}
+	
+	private static String getResourceAsString(Resource resource) {
+		byte [] data = getResourceAsBytes(resource);
+		return (data != null) ? new String(data) : null;
+	}
+	
+	private static byte[] getResourceAsBytes(Resource resource) {
+		byte [] result = null;
 		
 		if (resource != null) {
 			try {
@@ -98,21 +198,38 @@ public class Resources {
 					ByteArrayOutputStream os = new ByteArrayOutputStream();
 					IOUtils.copy(is,os);
 					
-					byte [] data = os.toByteArray();
-					
-					result = new String(data);
+					result = os.toByteArray();
 				} finally {
 					is.close();
 				}
-			} catch(IOException ignore) {}
+			} catch(FileNotFoundException e) {
+				if (logger.isDebugEnabled())
+					logger.debug("Resource " + resource.getDescription() + " does not exist: " + e.getMessage());
+			} catch(IOException e) {
+				logger.warn("Could not read resource " + resource.getDescription(), e);
+			}
 		}
 		
 		return result;
 	}
 	
+	private static String getRemoteResourceAsString(String location) {
+		try {
+			return getRemoteLoader().get(location);
+		} catch(IOException e) {
+			logger.warn("Could not fetch remote resource " + location, e);
+			return null;
+		}
+	}
+	
+	private static boolean isRemote(String location) {
+		String lower = location.toLowerCase();
+		return lower.startsWith("http://") || lower.startsWith("https://");
+	}
+	
 	public static String findResourceAsString(String formatReplacement, String ... pathsToCheck) {
 		List<String> paths = new ArrayList<String>();
-		for (String path : paths) {
+		for (String path : pathsToCheck) {
 			paths.add(path);
 		}
 		
@@ -130,19 +247,125 @@ public class Resources {
 	 * @return the file contents, if found; or null if not found.
 	 */
 	public static String findResourceAsString(String formatReplacement, List<String> pathsToCheck) {
-		String content = null;
+		ResolvedResource resource = findResource(formatReplacement, pathsToCheck);
+		return (resource != null) ? resource.getContent() : null;
+	}
+	
+	/**
+	 * Attempts to locate the resource from the specified paths locations and reports
+	 * which location it was found at.
+	 * <p>
+	 * The outcome of the lookup, and of every location probed along the way, is remembered
+	 * for {@link #getCacheTtl()} milliseconds. Repeating a lookup within that time does not
+	 * touch the file system.
+	 * 
+	 * @param formatReplacement the %s replacement or null
+	 * @param pathsToCheck the paths to check for the specified resource
+	 * 
+	 * @return the resource, if found; or null if not found.
+	 */
+	public static ResolvedResource findResource(String formatReplacement, List<String> pathsToCheck) {
+		ConfigurationMetrics metrics = ConfigurationMetrics.get();
+		String key = null;
+		if (cache.isEnabled()) {
+			key = ResolutionCache.lookupKey(formatReplacement, pathsToCheck);
+			ResolvedResource cached = cache.getLookup(key);
+			metrics.cacheLookup(ConfigurationMetrics.RESOLUTION_CACHE, cached != null);
+			if (cached != null)
+				return ResolutionCache.isMiss(cached) ? null : cached;
+		}
+		
+		long start = System.nanoTime();
+		ResolvedResource result = null;
 		for (String path : pathsToCheck) {
 			if (formatReplacement != null)
 				path = String.format(path,formatReplacement);
 			
-			content = Resources.getResourceAsString(path);
-			if (logger.isInfoEnabled()) {
-				logger.info("Checking " + path + " for configuration file: " + (content != null ? "PASS" : "FAILED"));
-			}
-			if (content != null)
+			result = probe(path);
+			if (result != null)
 				break;
 		}	
 		
-		return content;
+		if (key != null)
+			cache.putLookup(key, (result != null) ? result : ResolutionCache.miss());
+		
+		metrics.resolved(formatReplacement, result != null, System.nanoTime() - start);
+		return result;
+	}
+	
+	/**
+	 * Returns every location of the specified paths at which the resource exists, in the
+	 * order of the paths. Each probe is remembered as in {@link #findResource(String, List)}.
+	 * 
+	 * @param formatReplacement the %s replacement or null
+	 * @param pathsToCheck the paths to check for the specified resource
+	 * 
+	 * @return the resources found; empty if none were found
+	 */
+	public static List<ResolvedResource> findResources(String formatReplacement, List<String> pathsToCheck) {
+		List<ResolvedResource> result = new ArrayList<ResolvedResource>();
+		List<String> checked = new ArrayList<String>();
+		for (String path : pathsToCheck) {
+			if (formatReplacement != null)
+				path = String.format(path,formatReplacement);
+			if (checked.contains(path))
+				continue;
+			checked.add(path);
+			
+			ResolvedResource resource = probe(path);
+			if (resource != null)
+				result.add(resource);
+		}
+		
+		return result;
+	}
+	
+	private static ResolvedResource probe(String location) {
+		ConfigurationMetrics metrics = ConfigurationMetrics.get();
+		if (cache.isEnabled()) {
+			ResolvedResource cached = cache.getLocation(location);
+			metrics.cacheLookup(ConfigurationMetrics.LOCATION_CACHE, cached != null);
+			if (cached != null)
+				return ResolutionCache.isMiss(cached) ? null : cached;
+		}
+		
+		long start = System.nanoTime();
+		ResolvedResource result;
+		long bytes = 0;
+		if (isRemote(location)) {
+			String content = getRemoteResourceAsString(location);
+			result = (content != null) ? new ResolvedResource(location, content, null) : null;
+			if (content != null)
+				bytes = Math.max(0, getRemoteLoader().getCachedLength(location));
+		} else {
+			Resource resource = getResource(location);
+			byte [] data = getResourceAsBytes(resource);
+			result = (data != null) ? new ResolvedResource(location, new String(data), getFile(resource)) : null;
+			if (data != null)
+				bytes = data.length;
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		metrics.probed(location, result != null, bytes, elapsed);
+		long count = probes.incrementAndGet();
+		if (logger.isDebugEnabled() && (count - 1) % logSample == 0) {
+			logger.debug("Checked " + location + " for configuration file: " + (result != null ? "PASS" : "FAILED")
+					+ " in " + (elapsed / 1000) + "us (probe " + count + ", logging 1 in " + logSample + ")");
+		}
+		
+		cache.putLocation(location, (result != null) ? result : ResolutionCache.miss());
+		return result;
+	}
+	
+	private static File getFile(Resource resource) {
+		if (resource instanceof FileSystemResource)
+			return ((FileSystemResource)resource).getFile();
+		
+		try {
+			if (resource instanceof UrlResource && ResourceUtils.isFileURL(resource.getURL()))
+				return resource.getFile();
+		} catch(IOException ignore) {}
+		
+		return null;
 	}
 }
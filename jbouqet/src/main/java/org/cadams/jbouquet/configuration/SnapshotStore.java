@@ -0,0 +1,341 @@
+package org.cadams.jbouquet.configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.cadams.jbouquet.file.AtomicWriter;
+import org.cadams.jbouquet.file.MappedFile;
+
+/**
+ * Stores parsed configuration objects as binary snapshots so a restart can skip parsing.
+ *
+ * <p>
+ * A snapshot records the SHA-1 of the source text it was parsed from. {@link #load(String, Class, String)}
+ * memory-maps the snapshot and returns the object only when that hash, the type name and the
+ * payload checksum all match; any mismatch or damage is reported as a miss so the caller parses
+ * the source again and overwrites the snapshot. Snapshots are written atomically.
+ * </p>
+ * <p>
+ * Objects are encoded with Java serialization, so only {@link Serializable} types are stored.
+ * Since snapshots are deserialized, the directory is created closed to everyone but its owner,
+ * and snapshots are neither read from nor written to a directory which is not. Deserialization
+ * also only resolves the classes the expected type can hold: the types of its fields, their
+ * subclasses, and the JDK's strings, numbers, dates and collections. Anything else is a miss.
+ * </p>
+ * <p>
+ * Layout: magic, version, type name, source hash, payload length, payload CRC32, payload.
+ * </p>
+ *
+ * @author cta
+ */
+public class SnapshotStore {
+	private static final Logger logger = Logger.getLogger(SnapshotStore.class.getName());
+
+	private static final int MAGIC = 0x4a425153;
+	private static final short VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Classes declared by the fields reachable from each snapshot type.
+	 */
+	private static final ClassValue<Set<Class<?>>> allowed = new ClassValue<Set<Class<?>>>() {
+		@Override
+		protected Set<Class<?>> computeValue(Class<?> type) {
+			Set<Class<?>> classes = new HashSet<Class<?>>();
+			collect(type, classes);
+			return Collections.unmodifiableSet(classes);
+		}
+	};
+
+	private final File directory;
+
+	/**
+	 * @param directory where snapshots are kept; created on first write
+	 */
+	public SnapshotStore(File directory) {
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the snapshot of the specified configuration if it was taken from the same source.
+	 *
+	 * @param filename the configuration filename
+	 * @param type
+	 * @param sourceHash the SHA-1 of the current source text
+	 * @return the object, or null if there is no valid snapshot
+	 */
+	public <T> T load(String filename, Class<T> type, String sourceHash) {
+		File file = getSnapshotFile(filename, type);
+		if (!file.isFile())
+			return null;
+
+		try {
+			if (!RemoteResourceLoader.isPrivateDirectory(directory.toPath())) {
+				logger.warn("Ignoring configuration snapshot " + file + ", its directory is not private to " + System.getProperty("user.name"));
+				return null;
+			}
+
+			MappedFile mapped = MappedFile.map(file, MapMode.READ_ONLY);
+			try {
+				if (mapped.getSegmentCount() != 1)
+					return null;
+
+				return read(mapped.getSegment(0), type, sourceHash);
+			} finally {
+				mapped.close();
+			}
+		} catch(IOException | ClassNotFoundException | BufferUnderflowException | ClassCastException e) {
+			logger.warn("Ignoring unreadable configuration snapshot " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the specified configuration. Objects which are not serializable
+	 * are skipped; failures are logged since the snapshot is only an optimization.
+	 *
+	 * @param filename the configuration filename
+	 * @param type
+	 * @param sourceHash the SHA-1 of the source text the object was parsed from
+	 * @param value
+	 * @return true if the snapshot was written
+	 */
+	public boolean store(String filename, Class<?> type, String sourceHash, Object value) {
+		if (!(value instanceof Serializable))
+			return false;
+
+		File file = getSnapshotFile(filename, type);
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			try (ObjectOutputStream out = new ObjectOutputStream(payload)) {
+				out.writeObject(value);
+			}
+			byte [] data = payload.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(data);
+
+			ByteArrayOutputStream snapshot = new ByteArrayOutputStream(data.length + 128);
+			DataOutputStream out = new DataOutputStream(snapshot);
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeUTF(type.getName());
+			out.writeUTF(sourceHash);
+			out.writeInt(data.length);
+			out.writeLong(crc.getValue());
+			out.write(data);
+			out.flush();
+
+			RemoteResourceLoader.createPrivateDirectory(directory.toPath());
+			if (!RemoteResourceLoader.isPrivateDirectory(directory.toPath())) {
+				logger.warn("Not writing configuration snapshot " + file + ", its directory is not private to " + System.getProperty("user.name"));
+				return false;
+			}
+			AtomicWriter.write(file, snapshot.toByteArray(), false);
+			return true;
+		} catch(IOException e) {
+			logger.warn("Could not write configuration snapshot " + file, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the snapshot of the specified configuration.
+	 *
+	 * @param filename
+	 * @param type
+	 */
+	public void delete(String filename, Class<?> type) {
+		getSnapshotFile(filename, type).delete();
+	}
+
+	File getSnapshotFile(String filename, Class<?> type) {
+		return new File(directory, filename.replaceAll("[^A-Za-z0-9._-]", "_") + "." + type.getName() + ".snap");
+	}
+
+	private static <T> T read(ByteBuffer buffer, Class<T> type, String sourceHash) throws IOException, ClassNotFoundException {
+		if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION)
+			return null;
+		if (!type.getName().equals(readUTF(buffer)) || !sourceHash.equals(readUTF(buffer)))
+			return null;
+
+		int length = buffer.getInt();
+		long checksum = buffer.getLong();
+		if (length != buffer.remaining())
+			return null;
+
+		ByteBuffer payload = buffer.slice();
+		if (checksum(payload.duplicate()) != checksum)
+			return null;
+
+		final ClassLoader loader = type.getClassLoader();
+		final Set<Class<?>> declared = allowed.get(type);
+		try (ObjectInputStream in = new ObjectInputStream(new BufferInputStream(payload)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				Class<?> resolved;
+				if (loader == null) {
+					resolved = super.resolveClass(desc);
+				} else {
+					try {
+						resolved = Class.forName(desc.getName(), false, loader);
+					} catch(ClassNotFoundException e) {
+						resolved = super.resolveClass(desc);
+					}
+				}
+
+				if (!isAllowed(resolved, declared))
+					throw new InvalidClassException(desc.getName(), "not expected in a snapshot");
+				return resolved;
+			}
+
+			@Override
+			protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+				throw new InvalidClassException("proxy", "not expected in a snapshot");
+			}
+		}) {
+			return type.cast(in.readObject());
+		}
+	}
+
+	private static boolean isAllowed(Class<?> type, Set<Class<?>> declared) {
+		while (type.isArray()) {
+			type = type.getComponentType();
+		}
+		if (type.isPrimitive() || declared.contains(type))
+			return true;
+
+		// plain values and containers of the JDK
+		if (type.getClassLoader() == null && type.getName().startsWith("java.")) {
+			return type == Object.class || type == String.class || type == Boolean.class || type == Character.class
+					|| Number.class.isAssignableFrom(type) || Enum.class.isAssignableFrom(type) || Date.class.isAssignableFrom(type)
+					|| Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type) || Comparator.class.isAssignableFrom(type);
+		}
+
+		// the application's own implementations of the types it declares
+		for (Class<?> candidate : declared) {
+			if (candidate.getClassLoader() != null && candidate.isAssignableFrom(type))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the type and the types its serialized fields declare, with their type arguments.
+	 */
+	private static void collect(Type type, Set<Class<?>> classes) {
+		if (type instanceof ParameterizedType) {
+			collect(((ParameterizedType)type).getRawType(), classes);
+			for (Type argument : ((ParameterizedType)type).getActualTypeArguments()) {
+				collect(argument, classes);
+			}
+		} else if (type instanceof GenericArrayType) {
+			collect(((GenericArrayType)type).getGenericComponentType(), classes);
+		} else if (type instanceof WildcardType) {
+			for (Type bound : ((WildcardType)type).getUpperBounds()) {
+				collect(bound, classes);
+			}
+		} else if (type instanceof TypeVariable) {
+			for (Type bound : ((TypeVariable<?>)type).getBounds()) {
+				collect(bound, classes);
+			}
+		} else if (type instanceof Class) {
+			Class<?> clz = (Class<?>)type;
+			while (clz.isArray()) {
+				clz = clz.getComponentType();
+			}
+			if (clz.isPrimitive() || clz == Object.class || !classes.add(clz) || clz.getClassLoader() == null)
+				return;
+
+			for (Class<?> current = clz; current != null && current != Object.class; current = current.getSuperclass()) {
+				classes.add(current);
+				for (Field field : current.getDeclaredFields()) {
+					if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0)
+						collect(field.getGenericType(), classes);
+				}
+			}
+		}
+	}
+
+	private static long checksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		byte [] chunk = new byte[8192];
+		while (buffer.hasRemaining()) {
+			int length = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Reads a string written by {@link DataOutputStream#writeUTF(String)}. Configuration type
+	 * names and hashes are ASCII, so the modified UTF-8 encoding decodes as UTF-8.
+	 */
+	private static String readUTF(ByteBuffer buffer) {
+		byte [] data = new byte[buffer.getShort() & 0xffff];
+		buffer.get(data);
+		return new String(data, UTF8);
+	}
+
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
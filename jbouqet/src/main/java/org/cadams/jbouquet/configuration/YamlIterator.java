@@ -0,0 +1,99 @@
+package org.cadams.jbouquet.configuration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Lazily parses a multi-document YAML stream one document at a time.
+ *
+ * <p>
+ * Documents are read from the underlying reader only as the iterator advances, so memory
+ * is bounded by the largest single document rather than the whole stream. The reader is
+ * closed once the last document has been returned, when parsing fails, or by {@link #close()}.
+ * Instances are returned by {@link YamlParser#iterate(Class, Reader)} and its overloads.
+ * </p>
+ *
+ * @author cta
+ */
+public class YamlIterator<T> implements Iterator<T>, Iterable<T>, Closeable {
+	private final Class<T> type;
+	private final Reader reader;
+	private final Iterator<Object> documents;
+	private Yaml yaml;
+
+	YamlIterator(Class<T> type, Reader reader, Yaml yaml) {
+		this.type = type;
+		this.reader = reader;
+		this.yaml = yaml;
+		this.documents = yaml.loadAll(reader).iterator();
+	}
+
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	public boolean hasNext() {
+		if (yaml == null)
+			return false;
+
+		boolean more;
+		try {
+			more = documents.hasNext();
+		} catch(RuntimeException e) {
+			fail();
+			throw e;
+		}
+
+		if (!more)
+			close();
+		return more;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		try {
+			return (T)documents.next();
+		} catch(RuntimeException e) {
+			fail();
+			throw e;
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Closes the underlying reader. Remaining documents are not parsed.
+	 */
+	public void close() {
+		if (yaml == null)
+			return;
+
+		YamlParser.release(type, yaml);
+		yaml = null;
+		closeReader();
+	}
+
+	/**
+	 * Drops the parser, which may hold partial state, and closes the reader.
+	 */
+	private void fail() {
+		yaml = null;
+		closeReader();
+	}
+
+	private void closeReader() {
+		try {
+			reader.close();
+		} catch(IOException ignore) {}
+	}
+}
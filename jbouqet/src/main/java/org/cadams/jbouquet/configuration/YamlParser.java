@@ -1,15 +1,20 @@
 package org.cadams.jbouquet.configuration;
 
 import java.io.File;
-import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import org.apache.commons.io.FileUtils;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
+import org.yaml.snakeyaml.reader.UnicodeReader;
 
 /**
  * A basic type-safe YAML parser.
@@ -19,17 +24,58 @@ import org.yaml.snakeyaml.constructor.Constructor;
  * - The class that you are instantiating with the parsed data can not be a
  *   nested class. It must be a top-level or static inner class
  * 
+ * <p>
+ * {@code Yaml} instances are not thread-safe, but building one per call repeats the type
+ * description and bean property introspection of the target class every time. Prepared
+ * instances are therefore pooled per target class: a parse borrows one, and returns it
+ * once the document has been fully constructed. An instance whose parse failed is
+ * discarded since its constructor may hold partial state. The pools are attached to the
+ * target classes themselves, so they do not keep the class loader of an undeployed
+ * application alive.
+ * </p>
+ * 
  * @author Chris Adams
  */
 public final class YamlParser {
+	/**
+	 * Maximum number of idle parsers kept per target class.
+	 */
+	private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * A map keyed by class would hold the classes strongly, and weak keys do not help
+	 * since the pooled parsers refer to their class.
+	 */
+	private static final ClassValue<ParserPool> pools = new ClassValue<ParserPool>() {
+		@Override
+		protected ParserPool computeValue(Class<?> type) {
+			return new ParserPool();
+		}
+	};
 	
+	/**
+	 * Incremented by {@link #clearPool()}; pools of an older generation are emptied on use.
+	 */
+	private static volatile int generation = 0;
+	
+	/**
+	 * Parses a YAML map and returns its top-level entries as strings. Non-string values,
+	 * such as numbers and booleans, are converted with {@code toString()}.
+	 * 
+	 * @param yaml
+	 * @return
+	 * @see ConfigView
+	 */
 	public static Map<String,String> parseToMap(String yaml) {
-		@SuppressWarnings("rawtypes")
-		Map temp = parse(Map.class, yaml);
+		Map<?,?> temp = parse(Map.class, yaml);
 		
 		Map<String,String> result = new HashMap<String,String>();
-		for (Object key : temp.keySet()) {
-			result.put((String)key, (String)temp.get(key));
+		if (temp == null)
+			return result;
+		
+		for (Map.Entry<?,?> entry : temp.entrySet()) {
+			Object value = entry.getValue();
+			result.put(String.valueOf(entry.getKey()), (value != null) ? value.toString() : null);
 		}
 		
 		return result;
@@ -60,31 +106,71 @@ public final class YamlParser {
 	 * @return
 	 */
 	public static <T> T parse(Class<T> clz, File yaml) {
-		List<T> results = parseAll(clz, yaml);
-		
-		T result = null;
-		if (results.size() > 0) 
-			result = results.get(0);
-		
-		return result;
+		YamlIterator<T> results = iterate(clz, yaml);
+		try {
+			return results.hasNext() ? results.next() : null;
+		} finally {
+			results.close();
+		}
 	}	
 	
 	/**
 	 * Parses the specifeid YAML document into the specified result type.
+	 * <p>
+	 * The file is read as a stream, detecting a UTF-16 byte order mark and defaulting to UTF-8.
 	 * 
 	 * @param clz
 	 * @param file
 	 * @return
 	 */
 	public static <T> List<T> parseAll(Class<T> clz, File file) {
+		List<T> results = new ArrayList<T>();
+		for (T item : iterate(clz, file)) {
+			results.add(item);
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Lazily parses the documents of the specified file, one at a time.
+	 * 
+	 * @param clz
+	 * @param file
+	 * @return an iterator which must be closed if it is not read to the end
+	 */
+	public static <T> YamlIterator<T> iterate(Class<T> clz, File file) {
 		try {
-			String doc = FileUtils.readFileToString(file);
-			return parseAll(clz, doc);
-		} catch(IOException e) {
+			return iterate(clz, new FileInputStream(file));
+		} catch(FileNotFoundException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Lazily parses the documents of the specified stream, one at a time. The encoding is
+	 * detected from the byte order mark, defaulting to UTF-8.
+	 * 
+	 * @param clz
+	 * @param stream
+	 * @return an iterator which must be closed if it is not read to the end
+	 */
+	public static <T> YamlIterator<T> iterate(Class<T> clz, InputStream stream) {
+		return iterate(clz, new UnicodeReader(stream));
+	}
+	
+	/**
+	 * Lazily parses the documents of the specified reader, one at a time. Memory use is
+	 * bounded by the largest single document.
+	 * 
+	 * @param clz
+	 * @param reader
+	 * @return an iterator which must be closed if it is not read to the end
+	 */
+	public static <T> YamlIterator<T> iterate(Class<T> clz, Reader reader) {
+		return new YamlIterator<T>(clz, reader, borrow(clz));
+	}
+	
 	/**
 	 * Parse the specified yaml document into the result type
 	 * 
@@ -95,17 +181,58 @@ public final class YamlParser {
 	@SuppressWarnings("unchecked")	
 	public static <T> List<T> parseAll(Class<T> clz, String document) {
 		List<T> results = new ArrayList<T>();
-		Yaml yaml = new Yaml(new Constructor(clz));
+		Yaml yaml = borrow(clz);
+		ConfigurationMetrics metrics = ConfigurationMetrics.get();
+		long start = System.nanoTime();
 
 		try {
 			Iterable<Object> items = yaml.loadAll(document);
 			for (Object item : items) {
 				results.add((T)item);
 			}	
-			return results;
 		} catch(Exception e) {
+			metrics.parsed(clz, false, System.nanoTime() - start);
 			throw new RuntimeException(e);
-		}		
+		}
+		
+		metrics.parsed(clz, true, System.nanoTime() - start);
+		release(clz, yaml);
+		return results;
+	}
+	
+	/**
+	 * Drops every pooled parser, e.g. before unloading the classes they were prepared for.
+	 */
+	public static void clearPool() {
+		generation++;
+	}
+	
+	private static Yaml borrow(Class<?> clz) {
+		Yaml yaml = pools.get(clz).idle().poll();
+		
+		return (yaml != null) ? yaml : new Yaml(new Constructor(clz));
+	}
+	
+	static void release(Class<?> clz, Yaml yaml) {
+		Queue<Yaml> idle = pools.get(clz).idle();
+		
+		// the size check is racy, so the bound is approximate
+		if (idle.size() < MAX_POOLED)
+			idle.offer(yaml);
+	}
+	
+	private static class ParserPool {
+		private final Queue<Yaml> idle = new ConcurrentLinkedQueue<Yaml>();
+		private volatile int generation = YamlParser.generation;
+		
+		Queue<Yaml> idle() {
+			int current = YamlParser.generation;
+			if (generation != current) {
+				generation = current;
+				idle.clear();
+			}
+			return idle;
+		}
 	}
 
 	/**
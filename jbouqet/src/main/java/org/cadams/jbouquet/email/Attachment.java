@@ -1,31 +1,179 @@
 package org.cadams.jbouquet.email;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.activation.DataSource;
+import javax.activation.FileTypeMap;
+import javax.mail.util.ByteArrayDataSource;
+
 /**
  * Represents an email attachment used by the EmailClient.
- * 
+ * <p>
+ * The content is either held in memory as bytes, or read from a file or a
+ * {@link StreamSupplier} while the email is written to the server, so large attachments
+ * are never loaded on the heap. Streamed content is read again each time the email is
+ * sent.
+ * </p>
+ *
  * @author cta
  *
  */
 public class Attachment {
+	/**
+	 * Opens the content of a streamed attachment.
+	 */
+	public interface StreamSupplier {
+		/**
+		 * Returns a new stream over the whole content; called once per send.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		InputStream open() throws IOException;
+	}
+
 	private byte [] data;
+	private Path path;
+	private StreamSupplier supplier;
 	private String filename;
 	private String mimeType;
-	
+
 	public Attachment() {
 	}
-	
+
 	public Attachment(String filename, String mimeType, byte [] data) {
 		this.data = data;
 		this.filename = filename;
 		this.mimeType = mimeType;
 	}
-	
+
+	/**
+	 * Attaches the file, read when the email is sent.
+	 *
+	 * @param filename the name shown to the recipient
+	 * @param mimeType or null to guess it from the filename
+	 * @param file
+	 */
+	public Attachment(String filename, String mimeType, File file) {
+		this(filename, mimeType, file.toPath());
+	}
+
+	/**
+	 * Attaches the file, read when the email is sent.
+	 *
+	 * @param filename the name shown to the recipient
+	 * @param mimeType or null to guess it from the filename
+	 * @param path
+	 */
+	public Attachment(String filename, String mimeType, Path path) {
+		this.path = path;
+		this.filename = filename;
+		this.mimeType = mimeType;
+	}
+
+	/**
+	 * Attaches the content of the supplied stream, opened when the email is sent.
+	 *
+	 * @param filename the name shown to the recipient
+	 * @param mimeType or null to guess it from the filename
+	 * @param supplier
+	 */
+	public Attachment(String filename, String mimeType, StreamSupplier supplier) {
+		this.supplier = supplier;
+		this.filename = filename;
+		this.mimeType = mimeType;
+	}
+
+	/**
+	 * Returns the content given as bytes, or null if the attachment is streamed.
+	 */
 	public byte[] getData() {
 		return data;
 	}
 	public void setData(byte[] data) {
 		this.data = data;
+		this.path = null;
+		this.supplier = null;
+	}
+
+	/**
+	 * Returns the file the content is read from, or null.
+	 */
+	public Path getPath() {
+		return path;
 	}
+	public void setPath(Path path) {
+		this.data = null;
+		this.path = path;
+		this.supplier = null;
+	}
+
+	/**
+	 * Returns the supplier the content is read from, or null.
+	 */
+	public StreamSupplier getSupplier() {
+		return supplier;
+	}
+	public void setSupplier(StreamSupplier supplier) {
+		this.data = null;
+		this.path = null;
+		this.supplier = supplier;
+	}
+
+	public boolean isStreamed() {
+		return data == null && (path != null || supplier != null);
+	}
+
+	/**
+	 * Opens a new stream over the content, whichever way it was given.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream openStream() throws IOException {
+		if (path != null)
+			return new BufferedInputStream(Files.newInputStream(path));
+		if (supplier != null)
+			return new BufferedInputStream(supplier.open());
+		if (data != null)
+			return new ByteArrayInputStream(data);
+
+		throw new IOException("Attachment " + filename + " has no content");
+	}
+
+	/**
+	 * Returns the content for the MIME encoder; streamed content is read while it is encoded.
+	 */
+	public DataSource getDataSource() {
+		if (!isStreamed())
+			return new ByteArrayDataSource((data != null) ? data : new byte[0], getContentType());
+
+		return new DataSource() {
+			public InputStream getInputStream() throws IOException {
+				return openStream();
+			}
+
+			public OutputStream getOutputStream() throws IOException {
+				throw new IOException("Attachment " + filename + " is read only");
+			}
+
+			public String getContentType() {
+				return Attachment.this.getContentType();
+			}
+
+			public String getName() {
+				return filename;
+			}
+		};
+	}
+
 	public String getFilename() {
 		return filename;
 	}
@@ -38,4 +186,11 @@ public class Attachment {
 	public void setMimeType(String mimeType) {
 		this.mimeType = mimeType;
 	}
+
+	private String getContentType() {
+		if (mimeType != null)
+			return mimeType;
+
+		return FileTypeMap.getDefaultFileTypeMap().getContentType((filename != null) ? filename : "");
+	}
 }
@@ -1,12 +1,12 @@
 package org.cadams.jbouquet.email;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 
 import javax.activation.DataHandler;
-import javax.activation.DataSource;
 import javax.mail.Authenticator;
 import javax.mail.BodyPart;
 import javax.mail.Message;
@@ -20,9 +20,10 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import javax.mail.util.ByteArrayDataSource;
 
+import org.cadams.jbouquet.configuration.ConfigView;
 import org.cadams.jbouquet.configuration.ConfigurationFinder;
+import org.cadams.jbouquet.file.Promise;
 import org.cadams.jbouquet.text.Strings;
 
 /**
@@ -30,7 +31,7 @@ import org.cadams.jbouquet.text.Strings;
  * 
  * @author cta
  */
-public class EmailClient {
+public class EmailClient implements Closeable {
 	/**
 	 * Gets a pre-configured client using the email-client.yaml settings file.
 	 * <p>
@@ -45,15 +46,12 @@ public class EmailClient {
 	 * @return
 	 */
 	public static EmailClient getConfiguredClient() {
-		Map<String,String> config = ConfigurationFinder.newInstance().readMap("email-client.yaml");
-		
-		String host = config.get("smtp-host");
-		String user = config.get("smtp-user");
-		String password = config.get("smtp-pass");
-		int port = 25;
-		if (config.get("smtp-port") != null) {
-			port = Integer.parseInt(config.get("smtp-port"));
-		}
+		ConfigView config = ConfigurationFinder.newInstance().readView("email-client.yaml");
+		
+		String host = config.getString("smtp-host", null);
+		String user = config.getString("smtp-user", null);
+		String password = config.getString("smtp-pass", null);
+		int port = config.getInt("smtp-port", 25);
 		
 		return new EmailClient(host, port, user, password);
 	}
@@ -66,6 +64,8 @@ public class EmailClient {
 	private boolean debug = false;
 	private Properties properties;
 	private Authenticator auth;
+	private TransportPool pool;
+	private EmailDispatcher dispatcher;
 	
 	public EmailClient(String host) {
 		this(host,25,null, null);
@@ -109,21 +109,99 @@ public class EmailClient {
 
 	}
 	
+	/**
+	 * Keeps up to {@code maxConnections} SMTP connections open and sends every email over
+	 * them, instead of connecting for each email. See {@link TransportPool}.
+	 * 
+	 * @param maxConnections
+	 * @return the pool, to tune its timeouts
+	 */
+	public synchronized TransportPool usePool(int maxConnections) {
+		if (pool != null)
+			pool.close();
+		
+		pool = new TransportPool(getSession(), host, port, username, password, maxConnections);
+		return pool;
+	}
+	
+	/**
+	 * Sends emails given to {@link #sendEmailAsync(Email)} in the background. See {@link EmailDispatcher}.
+	 * 
+	 * @param workers the number of emails sent at once
+	 * @param queueCapacity the maximum number of queued emails
+	 * @param policy what to do when the queue is full
+	 * @return the dispatcher
+	 */
+	public EmailDispatcher useDispatcher(int workers, int queueCapacity, EmailDispatcher.OverflowPolicy policy) {
+		EmailDispatcher created = new EmailDispatcher(this, workers, queueCapacity, policy);
+		EmailDispatcher previous;
+		synchronized (this) {
+			previous = dispatcher;
+			dispatcher = created;
+		}
+		// drain outside the lock, the workers need the pool
+		if (previous != null)
+			previous.close();
+		
+		return created;
+	}
+	
+	/**
+	 * Queues the email on the dispatcher set up by {@link #useDispatcher(int, int, EmailDispatcher.OverflowPolicy)}.
+	 * 
+	 * @param email
+	 * @return completes once the email was sent, or with the send failure
+	 */
+	public Promise<Email> sendEmailAsync(Email email) {
+		EmailDispatcher dispatcher;
+		synchronized (this) {
+			dispatcher = this.dispatcher;
+		}
+		if (dispatcher == null)
+			throw new IllegalStateException("No dispatcher is configured, see useDispatcher");
+		
+		return dispatcher.dispatch(email);
+	}
+	
+	/**
+	 * Sends the queued asynchronous emails, then closes the pooled connections, if any.
+	 * Emails sent afterwards connect for each email.
+	 */
+	public void close() {
+		EmailDispatcher dispatcher;
+		synchronized (this) {
+			dispatcher = this.dispatcher;
+			this.dispatcher = null;
+		}
+		// drain outside the lock, the workers need the pool
+		if (dispatcher != null)
+			dispatcher.close();
+		
+		synchronized (this) {
+			if (pool != null) {
+				pool.close();
+				pool = null;
+			}
+		}
+	}
+	
 	/**
 	 * Sends the specified email.
 	 * 
 	 * @param email
 	 */
 	public void sendEmail(Email email) {
-		//Get our default session
-		Session session = Session.getDefaultInstance(properties, auth);		
-		if (debug)  {
-			session.setDebug(true);
-		}
+		Session session = getSession();
+		TransportPool pool = getPool();
 		
 		Transport transport = null;		
 		try {
 			Message msg = EmailClient.buildEmailMessage(session, email);
+			if (pool != null) {
+				pool.send(msg);
+				return;
+			}
+			
 			transport = session.getTransport("smtp");
 			transport.connect(host, port, username, password);
 			transport.sendMessage(msg, msg.getAllRecipients());
@@ -138,10 +216,147 @@ public class EmailClient {
 		}
 	}
 	
+	/**
+	 * Sends every email over a single connection, or over the pool if one is in use.
+	 * 
+	 * @param emails a collection or any lazily produced sequence
+	 * @return one result per email, in the order of the emails
+	 * @see #sendAll(Iterable, int)
+	 */
+	public List<SendResult> sendAll(Iterable<Email> emails) {
+		return sendAll(emails, 1);
+	}
+	
+	/**
+	 * Sends every email, reusing connections across messages, and reports the outcome of each
+	 * email instead of stopping at the first failure.
+	 * <p>
+	 * {@code concurrency} senders share the emails, each keeping its connection open from one
+	 * message to the next. If the client uses a pool, see {@link #usePool(int)}, connections
+	 * are taken from it; otherwise a pool of {@code concurrency} connections is opened for the
+	 * batch and closed at the end.
+	 * 
+	 * <p>
+	 * If reading the next email from {@code emails} fails, no further emails are sent and
+	 * the last result carries the error, after the results of the emails already taken.
+	 * 
+	 * @param emails a collection or any lazily produced sequence; it is read by one sender at a time
+	 * @param concurrency the number of messages sent at once
+	 * @return one result per email, in the order of the emails
+	 */
+	public List<SendResult> sendAll(Iterable<Email> emails, int concurrency) {
+		if (concurrency < 1)
+			throw new IllegalArgumentException("The concurrency must be at least 1");
+		
+		final Session session = getSession();
+		TransportPool pool = getPool();
+		TransportPool batchPool = null;
+		if (pool == null)
+			pool = batchPool = new TransportPool(session, host, port, username, password, concurrency);
+		
+		try {
+			BatchSender sender = new BatchSender(session, pool, emails.iterator());
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 1; i < concurrency; i++) {
+				Thread thread = new Thread(sender, "email-batch-" + i);
+				thread.start();
+				threads.add(thread);
+			}
+			sender.run();
+			
+			boolean interrupted = false;
+			for (Thread thread : threads) {
+				while (thread.isAlive()) {
+					try {
+						thread.join();
+					} catch(InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			
+			return sender.getResults();
+		} finally {
+			if (batchPool != null)
+				batchPool.close();
+		}
+	}
+	
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 	}
 	
+	private synchronized TransportPool getPool() {
+		return pool;
+	}
+	
+	private Session getSession() {
+		//Get our default session
+		Session session = Session.getDefaultInstance(properties, auth);		
+		if (debug)  {
+			session.setDebug(true);
+		}
+		
+		return session;
+	}
+	
+	/**
+	 * Takes emails from a shared iterator and sends them over the pool until it is exhausted.
+	 */
+	private static class BatchSender implements Runnable {
+		private final Session session;
+		private final TransportPool pool;
+		private final Iterator<Email> emails;
+		private final List<SendResult> results = new ArrayList<SendResult>();
+		private boolean failed = false;
+		
+		BatchSender(Session session, TransportPool pool, Iterator<Email> emails) {
+			this.session = session;
+			this.pool = pool;
+			this.emails = emails;
+		}
+		
+		public void run() {
+			for (;;) {
+				Email email;
+				int index;
+				synchronized (this) {
+					if (failed)
+						return;
+					try {
+						if (!emails.hasNext())
+							return;
+						email = emails.next();
+					} catch(RuntimeException e) {
+						// reported in place of the email that could not be read
+						failed = true;
+						results.add(new SendResult(results.size(), e));
+						return;
+					}
+					index = results.size();
+					results.add(null);
+				}
+				
+				Exception error = null;
+				try {
+					pool.send(EmailClient.buildEmailMessage(session, email));
+				} catch(MessagingException | RuntimeException e) {
+					error = e;
+				}
+				
+				synchronized (this) {
+					results.set(index, new SendResult(index, error));
+				}
+			}
+		}
+		
+		synchronized List<SendResult> getResults() {
+			return results;
+		}
+	}
+	
 	private static Message buildEmailMessage(Session session, Email email) throws MessagingException {
 		Message msg = new MimeMessage(session);
 		
@@ -176,9 +391,11 @@ public class EmailClient {
 	private static void addAttachments(Multipart multipart, Email email) throws MessagingException {
 		for (Attachment attachment : email.getAttachments()) {
 			BodyPart body = new MimeBodyPart();
-			DataSource source = new ByteArrayDataSource(attachment.getData(), attachment.getMimeType());
-			body.setDataHandler(new DataHandler(source));
+			body.setDataHandler(new DataHandler(attachment.getDataSource()));
 			body.setFileName(attachment.getFilename());
+			// otherwise the encoding is chosen by reading the whole stream once before sending it
+			if (attachment.isStreamed())
+				body.setHeader("Content-Transfer-Encoding", "base64");
 			multipart.addBodyPart(body);
 		}
 	}
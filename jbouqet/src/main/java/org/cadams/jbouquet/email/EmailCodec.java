@@ -0,0 +1,180 @@
+package org.cadams.jbouquet.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compact binary encoding of emails for the {@link EmailOutbox} log and dead letters.
+ * <p>
+ * Attachments read from a local file are stored as a reference to the file, which must
+ * still exist when the email is sent. Files in the spool directory given to the encoder are
+ * stored by name only, and resolved against the directory given to the decoder, so they can
+ * be moved along with the encoded email. Supplier-backed attachments must be spooled to a
+ * file first; they are never loaded into the encoding.
+ * </p>
+ *
+ * @author cta
+ */
+final class EmailCodec {
+	private static final int VERSION = 3;
+	private static final int INLINE = 0;
+	private static final int FILE = 1;
+	private static final int SPOOLED = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private EmailCodec() {
+	}
+
+	/**
+	 * Encodes the email, storing attachments in the spool directory by name.
+	 *
+	 * @param email
+	 * @param spool the spool directory, or null
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] encode(Email email, File spool) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(VERSION);
+		writeString(out, email.getFrom());
+		writeStrings(out, email.getTo());
+		writeStrings(out, email.getBcc());
+		writeString(out, email.getSubject());
+		writeString(out, email.getHtml());
+
+		out.writeInt(email.getAttachments().size());
+		for (Attachment attachment : email.getAttachments()) {
+			writeString(out, attachment.getFilename());
+			writeString(out, attachment.getMimeType());
+			writeContent(out, attachment, spool);
+		}
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes the email, resolving spooled attachments against the spool directory.
+	 *
+	 * @param data
+	 * @param spool the directory the spooled attachments are in now
+	 * @return
+	 * @throws IOException
+	 */
+	static Email decode(byte[] data, File spool) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int version = in.readUnsignedByte();
+		if (version < 1 || version > VERSION)
+			throw new IOException("Unsupported email encoding version " + version);
+
+		Email email = new Email();
+		email.setFrom(readString(in));
+		readStrings(in, email.getTo());
+		readStrings(in, email.getBcc());
+		email.setSubject(readString(in));
+		email.setHtml(readString(in));
+
+		int attachments = in.readInt();
+		for (int i = 0; i < attachments; i++) {
+			String filename = readString(in);
+			String mimeType = readString(in);
+			// version 1 held only inline content
+			int kind = (version > 1) ? in.readUnsignedByte() : INLINE;
+			if (kind == FILE) {
+				email.getAttachments().add(new Attachment(filename, mimeType, Paths.get(readString(in))));
+			} else if (kind == SPOOLED) {
+				email.getAttachments().add(new Attachment(filename, mimeType, new File(spool, readString(in))));
+			} else {
+				email.getAttachments().add(new Attachment(filename, mimeType, readBytes(in)));
+			}
+		}
+
+		return email;
+	}
+
+	private static void writeContent(DataOutputStream out, Attachment attachment, File spool) throws IOException {
+		Path path = attachment.getPath();
+		if (path != null && path.getFileSystem() == FileSystems.getDefault()) {
+			if (spool != null && spool.toPath().equals(path.getParent())) {
+				out.writeByte(SPOOLED);
+				writeString(out, path.getFileName().toString());
+			} else {
+				out.writeByte(FILE);
+				writeString(out, path.toAbsolutePath().toString());
+			}
+			return;
+		}
+
+		out.writeByte(INLINE);
+		if (!attachment.isStreamed()) {
+			writeBytes(out, attachment.getData());
+			return;
+		}
+
+		// streams of another file system are copied in, but suppliers could be unbounded
+		if (attachment.getSupplier() != null)
+			throw new IllegalArgumentException("Attachment " + attachment.getFilename() + " must be spooled to a file before it is encoded");
+
+		try (InputStream in = attachment.openStream()) {
+			writeBytes(out, IOUtils.toByteArray(in));
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		writeBytes(out, (value != null) ? value.getBytes(UTF8) : null);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte [] data = readBytes(in);
+		return (data != null) ? new String(data, UTF8) : null;
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	private static void readStrings(DataInputStream in, List<String> values) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			values.add(readString(in));
+		}
+	}
+
+	/**
+	 * Writes the length, -1 for null, followed by the bytes.
+	 */
+	private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+		if (data == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+
+		byte [] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+}
@@ -0,0 +1,206 @@
+package org.cadams.jbouquet.email;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.cadams.jbouquet.file.Promise;
+
+/**
+ * Sends emails in the background from a bounded queue.
+ *
+ * <p>
+ * {@link #dispatch(Email)} queues the email and returns right away with a {@link Promise}
+ * of the send, which callers can wait on or register a completion handler with. A fixed number of workers, created by the supplied {@link ThreadFactory}, send the
+ * queued emails through the {@link EmailClient}; give the client a pool of as many
+ * connections as there are workers, see {@link EmailClient#usePool(int)}. On runtimes with
+ * virtual threads, a virtual thread factory may be supplied.
+ * </p>
+ * <p>
+ * When the queue is full the {@link OverflowPolicy} decides: the caller waits, the email is
+ * rejected, or the oldest queued email is dropped and its future cancelled. Closing the
+ * dispatcher stops accepting emails and sends what is queued before returning.
+ * </p>
+ *
+ * @author cta
+ */
+public class EmailDispatcher implements Closeable {
+	private static final Logger logger = Logger.getLogger(EmailDispatcher.class.getName());
+
+	/**
+	 * What {@link EmailDispatcher#dispatch(Email)} does when the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Wait until there is room in the queue.
+		 */
+		BLOCK,
+
+		/**
+		 * Throw a {@link RejectedExecutionException}.
+		 */
+		REJECT,
+
+		/**
+		 * Cancel the oldest queued email to make room.
+		 */
+		DROP_OLDEST
+	}
+
+	/**
+	 * How long {@link #close()} waits for the queue to drain.
+	 */
+	public static final long DEFAULT_DRAIN_MILLIS = 30000;
+
+	private final EmailClient client;
+	private final ThreadPoolExecutor executor;
+	private final AtomicInteger dropped = new AtomicInteger();
+
+	/**
+	 * Creates a dispatcher with daemon worker threads.
+	 *
+	 * @param client
+	 * @param workers the number of emails sent at once
+	 * @param queueCapacity the maximum number of queued emails
+	 * @param policy
+	 */
+	public EmailDispatcher(EmailClient client, int workers, int queueCapacity, OverflowPolicy policy) {
+		this(client, workers, queueCapacity, policy, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "email-dispatch-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param client
+	 * @param workers the number of emails sent at once
+	 * @param queueCapacity the maximum number of queued emails
+	 * @param policy
+	 * @param threadFactory creates the worker threads
+	 */
+	public EmailDispatcher(EmailClient client, int workers, int queueCapacity, OverflowPolicy policy, ThreadFactory threadFactory) {
+		this.client = client;
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, getHandler(policy));
+		this.executor.prestartAllCoreThreads();
+	}
+
+	/**
+	 * Queues the email for sending.
+	 *
+	 * @param email
+	 * @return completes with the email once it was sent, or with the send failure
+	 * @throws RejectedExecutionException if the queue is full and the policy is {@code REJECT}, or the dispatcher is closed
+	 */
+	public Promise<Email> dispatch(final Email email) {
+		Promise.Task<Email> task = new Promise.Task<Email>(new Callable<Email>() {
+			public Email call() {
+				client.sendEmail(email);
+				return email;
+			}
+		});
+
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Returns the number of emails waiting to be sent.
+	 */
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of queued emails dropped by the {@code DROP_OLDEST} policy.
+	 */
+	public int getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stops accepting emails and waits for the queued ones to be sent.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return true if the queue drained; otherwise the emails still queued were cancelled
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		executor.shutdown();
+		try {
+			if (executor.awaitTermination(timeout, unit))
+				return true;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		List<Runnable> pending = executor.shutdownNow();
+		for (Runnable runnable : pending) {
+			((Future<?>)runnable).cancel(false);
+		}
+		logger.warn("Email dispatcher closed with " + pending.size() + " emails unsent");
+		return false;
+	}
+
+	/**
+	 * Waits up to {@link #DEFAULT_DRAIN_MILLIS} for the queue to drain.
+	 */
+	public void close() {
+		shutdown(DEFAULT_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private RejectedExecutionHandler getHandler(OverflowPolicy policy) {
+		switch (policy) {
+		case BLOCK:
+			return new RejectedExecutionHandler() {
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					if (executor.isShutdown())
+						throw new RejectedExecutionException("The email dispatcher is closed");
+					try {
+						executor.getQueue().put(r);
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException("Interrupted waiting for room in the email queue", e);
+					}
+					// closed while waiting; shutdownNow may already have collected the queue
+					if (executor.isShutdown() && executor.getQueue().remove(r))
+						throw new RejectedExecutionException("The email dispatcher is closed");
+				}
+			};
+		case DROP_OLDEST:
+			return new RejectedExecutionHandler() {
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					if (executor.isShutdown())
+						throw new RejectedExecutionException("The email dispatcher is closed");
+
+					Runnable oldest = executor.getQueue().poll();
+					if (oldest != null) {
+						((Future<?>)oldest).cancel(false);
+						dropped.incrementAndGet();
+					}
+					executor.execute(r);
+				}
+			};
+		default:
+			return new RejectedExecutionHandler() {
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					throw new RejectedExecutionException(executor.isShutdown() ? "The email dispatcher is closed" : "The email queue is full");
+				}
+			};
+		}
+	}
+}
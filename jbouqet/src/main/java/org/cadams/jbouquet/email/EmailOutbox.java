@@ -0,0 +1,770 @@
+package org.cadams.jbouquet.email;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.cadams.jbouquet.file.AtomicWriter;
+
+/**
+ * Durable outbox which keeps queued emails in a write-ahead log until they are sent.
+ *
+ * <p>
+ * {@link #enqueue(Email)} appends the email to the current segment of an append-only log
+ * and returns once the append is on disk. Appends from concurrent callers share fsyncs: the
+ * caller which syncs the log covers every record written before it, so under load one
+ * {@code force} serves a whole batch. On start the log is replayed and every email not yet
+ * acknowledged is queued again, so emails survive restarts; delivery is at least once.
+ * </p>
+ * <p>
+ * Worker threads send the queued emails through the {@link EmailClient}. A failed send is
+ * retried with exponential backoff; after the maximum number of attempts the email is
+ * written to the {@code dead-letter} directory and dropped from the log. Segments are
+ * rolled at a fixed size and deleted once every email in them has been acknowledged; a
+ * segment holding only a few lingering emails has them copied forward so it can be deleted,
+ * keeping disk use proportional to the emails actually pending.
+ * </p>
+ * <p>
+ * Only the position of each pending email in the log is kept in memory; its body is read
+ * back from the log when it is sent. The log is written through {@code RandomAccessFile},
+ * which, unlike a {@code FileChannel}, is not closed when a thread using it is interrupted.
+ * </p>
+ *
+ * @author cta
+ */
+public class EmailOutbox implements Closeable {
+	private static final Logger logger = Logger.getLogger(EmailOutbox.class.getName());
+
+	private static final String SEGMENT_PREFIX = "outbox-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final byte ENQUEUE = 1;
+	private static final byte ACK = 2;
+	private static final byte RETRY = 3;
+	private static final byte MARK = 4;
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * Offset of the encoded email in an ENQUEUE record: header, type, id and attempts.
+	 */
+	private static final int PAYLOAD_OFFSET = HEADER_SIZE + 1 + 8 + 4;
+
+	/**
+	 * How long an idle worker waits before checking whether the outbox was closed.
+	 */
+	private static final long IDLE_WAIT_MILLIS = 200;
+
+	private final EmailClient client;
+	private final File directory;
+	private final File deadLetters;
+	private final File spoolDirectory;
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private final Map<Long, Pending> pending = new LinkedHashMap<Long, Pending>();
+	private final DelayQueue<Pending> ready = new DelayQueue<Pending>();
+	private final Object syncLock = new Object();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final AtomicInteger deadLettered = new AtomicInteger();
+
+	private Segment active;
+	private long nextId = 1;
+	private long written = 0;
+	private long synced = 0;
+	private volatile boolean closed = false;
+
+	private volatile long segmentSize = 64L * 1024 * 1024;
+	private volatile int maxAttempts = 8;
+	private volatile long initialBackoffMillis = 1000;
+	private volatile long maxBackoffMillis = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * Opens the outbox in the specified directory with a single worker.
+	 *
+	 * @param client
+	 * @param directory
+	 */
+	public EmailOutbox(EmailClient client, File directory) {
+		this(client, directory, 1);
+	}
+
+	/**
+	 * Opens the outbox, replays its log and starts sending what is pending.
+	 *
+	 * @param client
+	 * @param directory where the log segments are kept
+	 * @param workers the number of emails sent at once
+	 */
+	public EmailOutbox(EmailClient client, File directory, int workers) {
+		this.client = client;
+		this.directory = directory;
+		this.deadLetters = new File(directory, "dead-letter");
+		this.spoolDirectory = new File(directory, "attachments");
+
+		try {
+			directory.mkdirs();
+			recover();
+		} catch(IOException e) {
+			throw new RuntimeException("Could not open the email outbox in " + directory, e);
+		}
+
+		for (int i = 0; i < workers; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "email-outbox-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+			this.workers.add(thread);
+		}
+	}
+
+	/**
+	 * Sets the size at which a new log segment is started.
+	 *
+	 * @param bytes
+	 */
+	public void setSegmentSize(long bytes) {
+		this.segmentSize = bytes;
+	}
+
+	/**
+	 * Sets how many times an email is tried before it is dead-lettered.
+	 *
+	 * @param attempts
+	 */
+	public void setMaxAttempts(int attempts) {
+		this.maxAttempts = attempts;
+	}
+
+	/**
+	 * Sets the delay before the first retry, doubled for each later retry up to the maximum.
+	 *
+	 * @param initialMillis
+	 * @param maxMillis
+	 */
+	public void setBackoff(long initialMillis, long maxMillis) {
+		this.initialBackoffMillis = initialMillis;
+		this.maxBackoffMillis = maxMillis;
+	}
+
+	/**
+	 * Durably queues the email for sending. Attachments read from a local file are logged
+	 * by reference, so the file must be kept until the email is sent. Attachments given as a
+	 * {@link Attachment.StreamSupplier} are copied to the {@code attachments} directory of
+	 * the outbox and logged by reference too, so they are never held on the heap.
+	 *
+	 * @param email
+	 * @return the id of the email in the outbox
+	 */
+	public long enqueue(Email email) {
+		Pending entry;
+		long position;
+		synchronized (this) {
+			checkOpen();
+			entry = new Pending(nextId++);
+		}
+
+		boolean logged = false;
+		try {
+			byte [] data = EmailCodec.encode(spool(entry.id, email), spoolDirectory);
+			synchronized (this) {
+				checkOpen();
+				appendEntry(entry, data);
+				position = written;
+				pending.put(entry.id, entry);
+				logged = true;
+			}
+			sync(position);
+		} catch(IOException e) {
+			throw new RuntimeException("Could not write to the email outbox in " + directory, e);
+		} finally {
+			if (!logged)
+				deleteSpooled(entry.id);
+		}
+
+		ready.add(entry);
+		return entry.id;
+	}
+
+	/**
+	 * Returns the number of emails not yet sent or dead-lettered.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Returns the number of emails dead-lettered since the outbox was opened.
+	 */
+	public int getDeadLetterCount() {
+		return deadLettered.get();
+	}
+
+	/**
+	 * Returns the directory where emails which could not be sent are kept, one file per email.
+	 * Read them with {@link #readDeadLetter(File)}.
+	 */
+	public File getDeadLetterDirectory() {
+		return deadLetters;
+	}
+
+	/**
+	 * Reads a dead-lettered email.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Email readDeadLetter(File file) throws IOException {
+		// attachments spooled by the outbox were moved next to the dead letter
+		return EmailCodec.decode(FileUtils.readFileToByteArray(file), file.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Returns the number of log segments on disk.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Stops the workers, letting sends in progress finish, and closes the log. Pending emails
+	 * stay in the log and are sent when the outbox is opened again.
+	 */
+	public void close() {
+		closed = true;
+		// workers notice the flag within IDLE_WAIT_MILLIS; interrupting one mid-send would
+		// lose the acknowledgement of an email already sent
+		for (Thread worker : workers) {
+			try {
+				worker.join(TimeUnit.SECONDS.toMillis(30));
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		synchronized (this) {
+			try {
+				active.force();
+			} catch(IOException e) {
+				logger.warn("Could not sync the email outbox", e);
+			}
+			for (Segment segment : segments.values()) {
+				segment.close();
+			}
+		}
+	}
+
+	private void work() {
+		while (!closed) {
+			Pending entry;
+			try {
+				entry = ready.poll(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				continue;
+			}
+			if (entry == null)
+				continue;
+
+			byte [] data = null;
+			Exception error = null;
+			try {
+				data = read(entry);
+				client.sendEmail(EmailCodec.decode(data, spoolDirectory));
+			} catch(IOException | RuntimeException e) {
+				error = e;
+			}
+
+			try {
+				if (error == null) {
+					acknowledge(entry);
+					deleteSpooled(entry.id);
+				} else {
+					failed(entry, data, error);
+				}
+			} catch(IOException e) {
+				logger.error("Could not update the email outbox in " + directory, e);
+				requeue(entry);
+			}
+		}
+	}
+
+	private void failed(Pending entry, byte[] data, Exception error) throws IOException {
+		int attempts = entry.attempts + 1;
+		if (data == null && attempts >= maxAttempts) {
+			// without its record there is nothing to dead-letter
+			logger.error("Dropping email " + entry.id + " after " + attempts + " attempts, its record in " + entry.segment.file + " could not be read", error);
+			acknowledge(entry);
+			deleteSpooled(entry.id);
+			return;
+		}
+		if (data != null && (attempts >= maxAttempts || isPermanent(error))) {
+			logger.error("Giving up on email " + entry.id + " after " + attempts + " attempts, moving it to " + deadLetters, error);
+			deadLetters.mkdirs();
+			// the dead letter is written first, so a failure leaves the attachments for a retry
+			AtomicWriter.write(new File(deadLetters, entry.id + ".email"), data, true);
+			for (File file : spooled(entry.id)) {
+				if (!file.renameTo(new File(deadLetters, file.getName())))
+					logger.warn("Could not move the attachment " + file + " to " + deadLetters);
+			}
+			deadLettered.incrementAndGet();
+			acknowledge(entry);
+			return;
+		}
+
+		long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempts - 1, 30));
+		// jitter keeps emails which failed together from retrying together
+		backoff += ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+		logger.warn("Could not send email " + entry.id + ", attempt " + attempts + " of " + maxAttempts + ", retrying in " + backoff + "ms: " + error.getMessage());
+
+		synchronized (this) {
+			entry.attempts = attempts;
+			entry.nextAttempt = System.currentTimeMillis() + backoff;
+			append(retryRecord(entry));
+		}
+		ready.add(entry);
+	}
+
+	/**
+	 * Queues the entry again after the log could not be updated for it, unless it was
+	 * acknowledged in the meantime.
+	 */
+	private void requeue(Pending entry) {
+		synchronized (this) {
+			if (pending.get(entry.id) != entry)
+				return;
+			entry.nextAttempt = System.currentTimeMillis() + initialBackoffMillis;
+		}
+		ready.add(entry);
+	}
+
+	/**
+	 * Copies the supplier-backed attachments of the email to numbered files in the spool
+	 * directory, returning a copy of the email which refers to the files instead.
+	 */
+	private Email spool(long id, Email email) throws IOException {
+		boolean streamed = false;
+		for (Attachment attachment : email.getAttachments()) {
+			streamed |= attachment.getSupplier() != null;
+		}
+		if (!streamed)
+			return email;
+
+		Email copy = new Email();
+		copy.setFrom(email.getFrom());
+		copy.getTo().addAll(email.getTo());
+		copy.getBcc().addAll(email.getBcc());
+		copy.setSubject(email.getSubject());
+		copy.setHtml(email.getHtml());
+
+		int count = 0;
+		spoolDirectory.mkdirs();
+		for (Attachment attachment : email.getAttachments()) {
+			if (attachment.getSupplier() == null) {
+				copy.getAttachments().add(attachment);
+				continue;
+			}
+
+			File file = new File(spoolDirectory, id + "-" + count++);
+			try (InputStream in = attachment.openStream()) {
+				AtomicWriter.write(file, in, true);
+			}
+			copy.getAttachments().add(new Attachment(attachment.getFilename(), attachment.getMimeType(), file));
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns the spooled attachments of the email, numbered from zero without gaps.
+	 */
+	private List<File> spooled(long id) {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0;; i++) {
+			File file = new File(spoolDirectory, id + "-" + i);
+			if (!file.exists())
+				return files;
+			files.add(file);
+		}
+	}
+
+	private void deleteSpooled(long id) {
+		for (File file : spooled(id)) {
+			if (!file.delete())
+				logger.warn("Could not delete the spooled attachment " + file);
+		}
+	}
+
+	/**
+	 * Removes the email from the log. Acknowledgements are not synced: if one is lost in a
+	 * crash the email is sent again, which at-least-once delivery allows.
+	 */
+	private synchronized void acknowledge(Pending entry) throws IOException {
+		ByteBuffer record = newRecord(ACK, 8);
+		record.putLong(entry.id);
+		append(record);
+
+		pending.remove(entry.id);
+		entry.segment.live--;
+		compact();
+	}
+
+	/**
+	 * Deletes the oldest segments once their emails are acknowledged, copying the few
+	 * remaining ones of a mostly acknowledged segment forward. Only a prefix of the log is
+	 * ever removed, since acknowledgements of its emails may sit in any later segment.
+	 */
+	private void compact() throws IOException {
+		while (segments.size() > 1) {
+			Segment oldest = segments.firstEntry().getValue();
+			if (oldest == active || oldest.live * 4 > oldest.total)
+				return;
+
+			if (oldest.live > 0) {
+				for (Pending entry : pending.values()) {
+					if (entry.segment == oldest)
+						appendEntry(entry, read(entry));
+				}
+				// forced here rather than through sync(), which locks in the other order
+				active.force();
+			}
+
+			segments.remove(oldest.sequence);
+			oldest.close();
+			if (!oldest.file.delete())
+				logger.warn("Could not delete the compacted outbox segment " + oldest.file);
+		}
+	}
+
+	/**
+	 * Appends an ENQUEUE record for the entry and points the entry at it, in whichever
+	 * segment the record landed after a possible roll.
+	 */
+	private void appendEntry(Pending entry, byte[] data) throws IOException {
+		ByteBuffer record = newRecord(ENQUEUE, 8 + 4 + data.length);
+		record.putLong(entry.id);
+		record.putInt(entry.attempts);
+		record.put(data);
+
+		Segment segment = append(record);
+		if (entry.segment != null)
+			entry.segment.live--;
+		entry.segment = segment;
+		entry.offset = segment.size - data.length;
+		entry.length = data.length;
+		segment.live++;
+		segment.total++;
+	}
+
+	/**
+	 * Reads the encoded email of the entry back from the log.
+	 */
+	private synchronized byte[] read(Pending entry) throws IOException {
+		byte [] data = new byte[entry.length];
+		entry.segment.raf.seek(entry.offset);
+		entry.segment.raf.readFully(data);
+		return data;
+	}
+
+	/**
+	 * Writes the record to the active segment, rolling it when full.
+	 *
+	 * @return the segment written to; the log position after the record is in {@code written}
+	 */
+	private Segment append(ByteBuffer record) throws IOException {
+		record.flip();
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_SIZE, record.limit() - HEADER_SIZE);
+		record.putInt(0, record.limit() - HEADER_SIZE);
+		record.putInt(4, (int)crc.getValue());
+
+		if (active.size + record.limit() > segmentSize && active.size > 0)
+			roll();
+
+		active.write(record.array(), record.limit());
+		written += record.limit();
+		return active;
+	}
+
+	/**
+	 * Forces the log to disk up to the specified position. Callers waiting here while
+	 * another caller forces find their records already synced, which batches the fsyncs.
+	 */
+	private void sync(long position) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= position)
+				return;
+
+			Segment segment;
+			long target;
+			synchronized (this) {
+				segment = active;
+				target = written;
+			}
+			try {
+				segment.force();
+			} catch(IOException e) {
+				// rolled and compacted meanwhile; it was forced when it was rolled
+				if (!segment.closed)
+					throw e;
+			}
+			synced = target;
+		}
+	}
+
+	/**
+	 * Starts a new segment, forcing the current one first. The new segment starts with the
+	 * highest id handed out so far, so ids are not reused once the older segments are gone:
+	 * dead letters are named by id.
+	 */
+	private void roll() throws IOException {
+		if (active != null)
+			active.force();
+
+		long sequence = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(sequence, new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX)));
+		segments.put(sequence, segment);
+		active = segment;
+
+		ByteBuffer mark = newRecord(MARK, 8);
+		mark.putLong(nextId - 1);
+		append(mark);
+		active.force();
+	}
+
+	private void recover() throws IOException {
+		File [] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null)
+			throw new IOException("Could not list the email outbox in " + directory);
+		Arrays.sort(files);
+
+		for (File file : files) {
+			String name = file.getName();
+			long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			Segment segment = new Segment(sequence, file);
+			segments.put(sequence, segment);
+			replay(segment);
+		}
+
+		// the new segment records the highest id before the segments holding it may go
+		roll();
+
+		// see compact() for why only the prefix goes
+		for (Iterator<Segment> iterator = segments.values().iterator(); iterator.hasNext();) {
+			Segment segment = iterator.next();
+			if (segment == active || segment.live > 0)
+				break;
+			iterator.remove();
+			segment.close();
+			segment.file.delete();
+		}
+
+		// attachments spooled for emails acknowledged just before a crash, or never logged
+		File [] leftovers = spoolDirectory.listFiles();
+		if (leftovers != null) {
+			for (File file : leftovers) {
+				String name = file.getName();
+				int dash = name.indexOf('-');
+				if (dash <= 0 || !name.substring(0, dash).matches("\\d+") || !pending.containsKey(Long.parseLong(name.substring(0, dash))))
+					file.delete();
+			}
+		}
+
+		ready.addAll(pending.values());
+		if (!pending.isEmpty())
+			logger.info("Recovered " + pending.size() + " unsent emails from the outbox in " + directory);
+	}
+
+	private void replay(Segment segment) throws IOException {
+		RandomAccessFile raf = segment.raf;
+		long position = 0;
+		long size = raf.length();
+		while (position + HEADER_SIZE <= size) {
+			raf.seek(position);
+			int length = raf.readInt();
+			int checksum = raf.readInt();
+			if (length <= 0 || position + HEADER_SIZE + length > size)
+				break;
+
+			byte [] body = new byte[length];
+			raf.readFully(body);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if ((int)crc.getValue() != checksum)
+				break;
+
+			apply(segment, position, ByteBuffer.wrap(body));
+			position += HEADER_SIZE + length;
+		}
+
+		if (position < size) {
+			// a torn write from a crash; drop it so appends stay readable
+			logger.warn("Truncating " + (size - position) + " unreadable bytes at the end of " + segment.file);
+			raf.setLength(position);
+		}
+		segment.size = position;
+	}
+
+	private void apply(Segment segment, long position, ByteBuffer body) {
+		byte type = body.get();
+		long id = body.getLong();
+		nextId = Math.max(nextId, id + 1);
+
+		Pending entry = pending.get(id);
+		switch (type) {
+		case ENQUEUE:
+			// a copy moved forward by compaction replaces the earlier one
+			if (entry != null)
+				entry.segment.live--;
+			entry = new Pending(id);
+			entry.attempts = body.getInt();
+			entry.segment = segment;
+			entry.offset = position + PAYLOAD_OFFSET;
+			entry.length = body.remaining();
+			segment.live++;
+			segment.total++;
+			pending.put(id, entry);
+			break;
+		case ACK:
+			if (entry != null) {
+				entry.segment.live--;
+				pending.remove(id);
+			}
+			break;
+		case RETRY:
+			if (entry != null) {
+				entry.attempts = body.getInt();
+				entry.nextAttempt = body.getLong();
+			}
+			break;
+		case MARK:
+			break;
+		default:
+			logger.warn("Skipping unknown outbox record type " + type + " in " + segment.file);
+		}
+	}
+
+	private static ByteBuffer retryRecord(Pending entry) {
+		ByteBuffer record = newRecord(RETRY, 8 + 4 + 8);
+		record.putLong(entry.id);
+		record.putInt(entry.attempts);
+		record.putLong(entry.nextAttempt);
+		return record;
+	}
+
+	/**
+	 * Allocates a record with room for the length and checksum header, which {@link #append(ByteBuffer)} fills in.
+	 */
+	private static ByteBuffer newRecord(byte type, int size) {
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 1 + size);
+		record.position(HEADER_SIZE);
+		record.put(type);
+		return record;
+	}
+
+	/**
+	 * Returns true for failures which retrying cannot fix: an undecodable record, or
+	 * recipients the server rejected as invalid.
+	 */
+	private static boolean isPermanent(Exception error) {
+		if (error instanceof IOException)
+			return true;
+
+		Throwable cause = error.getCause();
+		if (cause instanceof SendFailedException) {
+			Address [] invalid = ((SendFailedException)cause).getInvalidAddresses();
+			return invalid != null && invalid.length > 0;
+		}
+		return false;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("The email outbox is closed");
+	}
+
+	private static class Segment {
+		private final long sequence;
+		private final File file;
+		private final RandomAccessFile raf;
+		private long size;
+		private int live = 0;
+		private int total = 0;
+		private volatile boolean closed = false;
+
+		Segment(long sequence, File file) throws IOException {
+			this.sequence = sequence;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.size = raf.length();
+		}
+
+		void write(byte[] data, int length) throws IOException {
+			// reads of pending emails move the file pointer
+			raf.seek(size);
+			raf.write(data, 0, length);
+			size += length;
+		}
+
+		void force() throws IOException {
+			raf.getFD().sync();
+		}
+
+		void close() {
+			closed = true;
+			try {
+				raf.close();
+			} catch(IOException ignore) {}
+		}
+	}
+
+	private static class Pending implements Delayed {
+		private final long id;
+		private int attempts = 0;
+		private long nextAttempt = 0;
+		private Segment segment;
+		private long offset;
+		private int length;
+
+		Pending(long id) {
+			this.id = id;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(nextAttempt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			Pending that = (Pending)other;
+			if (nextAttempt != that.nextAttempt)
+				return (nextAttempt < that.nextAttempt) ? -1 : 1;
+
+			return Long.compare(id, that.id);
+		}
+	}
+}
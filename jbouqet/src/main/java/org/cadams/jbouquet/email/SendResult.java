@@ -0,0 +1,79 @@
+package org.cadams.jbouquet.email;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+
+/**
+ * Outcome of sending one email of a batch, see {@link EmailClient#sendAll(Iterable)}.
+ *
+ * <p>
+ * Results refer to their email by its position in the batch rather than holding on to it,
+ * so large batches read from a lazy source are not kept in memory.
+ * </p>
+ *
+ * @author cta
+ */
+public class SendResult {
+	private final int index;
+	private final Exception error;
+	private final List<String> failedRecipients;
+
+	SendResult(int index, Exception error) {
+		this.index = index;
+		this.error = error;
+		this.failedRecipients = getFailedRecipients(error);
+	}
+
+	/**
+	 * Returns the position of the email in the batch, starting at 0.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public boolean isSuccessful() {
+		return error == null;
+	}
+
+	/**
+	 * Returns why the email was not sent, or null if it was.
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	/**
+	 * Returns the recipients the server rejected or did not send to, if the server reported them.
+	 */
+	public List<String> getFailedRecipients() {
+		return failedRecipients;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + index + (isSuccessful() ? " sent" : " failed: " + error.getMessage());
+	}
+
+	private static List<String> getFailedRecipients(Exception error) {
+		if (!(error instanceof SendFailedException))
+			return Collections.emptyList();
+
+		SendFailedException failure = (SendFailedException)error;
+		List<String> result = new ArrayList<String>();
+		add(result, failure.getInvalidAddresses());
+		add(result, failure.getValidUnsentAddresses());
+		return Collections.unmodifiableList(result);
+	}
+
+	private static void add(List<String> result, Address[] addresses) {
+		if (addresses != null) {
+			for (Address address : addresses) {
+				result.add(address.toString());
+			}
+		}
+	}
+}
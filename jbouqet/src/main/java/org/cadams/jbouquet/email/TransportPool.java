@@ -0,0 +1,322 @@
+package org.cadams.jbouquet.email;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Bounded pool of connected, authenticated SMTP transports.
+ *
+ * <p>
+ * Connecting costs a TCP handshake, EHLO and AUTH, so transports are kept open and reused
+ * for later messages. At most {@code maxConnections} are open at once; further senders wait
+ * for one to be returned. Idle connections are reused most recently used first and closed
+ * after the idle timeout by a background evictor. A connection which sat idle longer than
+ * the validation interval is checked with {@link Transport#isConnected()}, which sends
+ * NOOP, before it is reused. Connections are recycled after a maximum number of messages.
+ * </p>
+ * <p>
+ * If sending fails because the connection was lost before the message data was sent, the
+ * message is sent once more on a new connection. Once the DATA command has been issued the
+ * server may already have accepted the message, so such failures are reported instead of
+ * risking a duplicate. Rejections by the server, such as invalid recipients, are not retried.
+ * </p>
+ *
+ * @author cta
+ */
+public class TransportPool implements Closeable {
+	private static final Logger logger = Logger.getLogger(TransportPool.class.getName());
+
+	private final Session session;
+	private final String host;
+	private final int port;
+	private final String username;
+	private final String password;
+	private final Semaphore permits;
+	private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+	private final ScheduledExecutorService evictor;
+
+	private volatile long maxIdleMillis = 30000;
+	private volatile long validateAfterMillis = 2000;
+	private volatile int maxMessagesPerConnection = 100;
+	private volatile long borrowTimeoutMillis = 30000;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param session the session transports are created from
+	 * @param host
+	 * @param port
+	 * @param username the user to authenticate as; or null
+	 * @param password
+	 * @param maxConnections the maximum number of open connections
+	 */
+	public TransportPool(Session session, String host, int port, String username, String password, int maxConnections) {
+		this.session = session;
+		this.host = host;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.permits = new Semaphore(maxConnections, true);
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "smtp-pool-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Sets how long a connection may stay unused before it is closed.
+	 *
+	 * @param millis
+	 */
+	public void setMaxIdleMillis(long millis) {
+		this.maxIdleMillis = millis;
+	}
+
+	/**
+	 * Sets how long a connection may stay unused before it is checked with NOOP on reuse.
+	 *
+	 * @param millis
+	 */
+	public void setValidateAfterMillis(long millis) {
+		this.validateAfterMillis = millis;
+	}
+
+	/**
+	 * Sets the number of messages after which a connection is closed and replaced.
+	 *
+	 * @param messages
+	 */
+	public void setMaxMessagesPerConnection(int messages) {
+		this.maxMessagesPerConnection = messages;
+	}
+
+	/**
+	 * Sets how long a sender waits for a connection when all of them are in use.
+	 *
+	 * @param millis
+	 */
+	public void setBorrowTimeoutMillis(long millis) {
+		this.borrowTimeoutMillis = millis;
+	}
+
+	/**
+	 * Sends the message to all of its recipients over a pooled connection.
+	 *
+	 * @param msg
+	 * @throws MessagingException
+	 */
+	public void send(Message msg) throws MessagingException {
+		PooledTransport transport = borrow();
+		boolean reusable = false;
+		try {
+			try {
+				transport.send(msg);
+				reusable = true;
+				return;
+			} catch(SendFailedException e) {
+				// rejected by the server, the connection is still usable
+				reusable = true;
+				throw e;
+			} catch(MessagingException e) {
+				if (transport.isFresh() || transport.transport.isDataStarted() || transport.transport.isConnected())
+					throw e;
+
+				logger.info("SMTP connection to " + host + " was lost, resending on a new connection: " + e.getMessage());
+			}
+
+			transport.close();
+			transport = connect();
+			transport.send(msg);
+			reusable = true;
+		} finally {
+			release(transport, reusable);
+		}
+	}
+
+	/**
+	 * Returns the number of idle connections.
+	 */
+	public int getIdleCount() {
+		synchronized (idle) {
+			return idle.size();
+		}
+	}
+
+	/**
+	 * Closes the connections which have been idle longer than the idle timeout.
+	 */
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+		List<PooledTransport> expired = new ArrayList<PooledTransport>();
+		synchronized (idle) {
+			// least recently used connections are at the end
+			for (Iterator<PooledTransport> iterator = idle.descendingIterator(); iterator.hasNext();) {
+				PooledTransport transport = iterator.next();
+				if (now - transport.lastUsed < maxIdleMillis)
+					break;
+				iterator.remove();
+				expired.add(transport);
+			}
+		}
+
+		for (PooledTransport transport : expired) {
+			transport.close();
+		}
+	}
+
+	/**
+	 * Closes every idle connection; connections in use are closed when they are returned.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+
+		List<PooledTransport> transports;
+		synchronized (idle) {
+			transports = new ArrayList<PooledTransport>(idle);
+			idle.clear();
+		}
+		for (PooledTransport transport : transports) {
+			transport.close();
+		}
+	}
+
+	private PooledTransport borrow() throws MessagingException {
+		if (closed)
+			throw new IllegalStateException("The transport pool is closed");
+
+		try {
+			if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+				throw new MessagingException("Timed out waiting for an SMTP connection to " + host);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted waiting for an SMTP connection to " + host, e);
+		}
+
+		try {
+			for (;;) {
+				PooledTransport transport;
+				synchronized (idle) {
+					transport = idle.pollFirst();
+				}
+				if (transport == null)
+					return connect();
+
+				if (System.currentTimeMillis() - transport.lastUsed < validateAfterMillis || transport.transport.isConnected())
+					return transport;
+
+				transport.close();
+			}
+		} catch(MessagingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void release(PooledTransport transport, boolean reusable) {
+		try {
+			if (!reusable || closed || transport.messages >= maxMessagesPerConnection) {
+				transport.close();
+				return;
+			}
+
+			transport.lastUsed = System.currentTimeMillis();
+			synchronized (idle) {
+				idle.addFirst(transport);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	private PooledTransport connect() throws MessagingException {
+		TrackingTransport transport = new TrackingTransport(session, new URLName("smtp", host, port, null, username, password));
+		transport.connect(host, port, username, password);
+		return new PooledTransport(transport);
+	}
+
+	/**
+	 * SMTP transport which records whether the current message got as far as the DATA command.
+	 */
+	private static class TrackingTransport extends SMTPTransport {
+		private volatile boolean dataStarted = false;
+
+		TrackingTransport(Session session, URLName url) {
+			super(session, url);
+		}
+
+		@Override
+		protected OutputStream data() throws MessagingException {
+			dataStarted = true;
+			return super.data();
+		}
+
+		boolean isDataStarted() {
+			return dataStarted;
+		}
+
+		void reset() {
+			dataStarted = false;
+		}
+	}
+
+	private static class PooledTransport {
+		private final TrackingTransport transport;
+		private int messages = 0;
+		private long lastUsed = System.currentTimeMillis();
+
+		PooledTransport(TrackingTransport transport) {
+			this.transport = transport;
+		}
+
+		void send(Message msg) throws MessagingException {
+			messages++;
+			transport.reset();
+			transport.sendMessage(msg, msg.getAllRecipients());
+		}
+
+		/**
+		 * Returns true until the connection has been used, so a failure on a new connection is not retried.
+		 */
+		boolean isFresh() {
+			return messages <= 1;
+		}
+
+		void close() {
+			try {
+				transport.close();
+			} catch(MessagingException e) {
+				if (logger.isDebugEnabled())
+					logger.debug("Error closing SMTP connection", e);
+			}
+		}
+	}
+}
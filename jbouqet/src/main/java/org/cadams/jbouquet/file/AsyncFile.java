@@ -0,0 +1,343 @@
+package org.cadams.jbouquet.file;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking counterparts of the I/O methods of {@link File}.
+ *
+ * <p>
+ * Reads and writes are issued through an {@code AsynchronousFileChannel} bound to the
+ * I/O executor. Copies and moves are handed to the same executor and use the regular
+ * zero-copy implementations. Every method returns immediately with a {@link Promise};
+ * failures, including a full executor queue, are reported through the promise rather
+ * than thrown.
+ * </p>
+ * <p>
+ * The executor bounds both the number of threads blocked on the disk and the number of
+ * operations waiting for one. Unless specified otherwise the shared executor returned by
+ * {@link #getDefaultExecutor()} is used.
+ * </p>
+ *
+ * @author cta
+ */
+public class AsyncFile {
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	private static ExecutorService defaultExecutor;
+
+	/**
+	 * Returns the shared I/O executor, creating one thread per processor and a queue of
+	 * {@link #DEFAULT_QUEUE_CAPACITY} operations on first use.
+	 */
+	public static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null)
+			defaultExecutor = newExecutor(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+
+		return defaultExecutor;
+	}
+
+	/**
+	 * Replaces the shared I/O executor. The previous executor is not shut down.
+	 *
+	 * @param executor
+	 */
+	public static synchronized void setDefaultExecutor(ExecutorService executor) {
+		defaultExecutor = executor;
+	}
+
+	/**
+	 * Creates a bounded I/O executor. Operations submitted while all threads are busy and
+	 * the queue is full fail with a {@code RejectedExecutionException}.
+	 *
+	 * @param threads
+	 * @param queueCapacity
+	 * @return
+	 */
+	public static ExecutorService newExecutor(int threads, int queueCapacity) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "async-file-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	private final File file;
+	private final ExecutorService executor;
+
+	public AsyncFile(File file) {
+		this(file, getDefaultExecutor());
+	}
+
+	public AsyncFile(File file, ExecutorService executor) {
+		this.file = file;
+		this.executor = executor;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Reads the file into a byte array.
+	 *
+	 * @return
+	 */
+	public Promise<byte[]> read() {
+		final Promise<byte[]> promise = new Promise<byte[]>();
+		execute(promise, new Runnable() {
+			public void run() {
+				startRead(promise);
+			}
+		});
+		return promise;
+	}
+
+	private void startRead(Promise<byte[]> promise) {
+		final AsynchronousFileChannel channel;
+		final byte[] data;
+		try {
+			channel = AsynchronousFileChannel.open(file.toPath(), Collections.singleton(StandardOpenOption.READ), executor);
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8) {
+				closeQuietly(channel);
+				throw new IOException("File '" + file + "' is too large to read into a byte array, use File.map() instead");
+			}
+			data = new byte[(int)size];
+		} catch(Throwable t) {
+			promise.fail(t);
+			return;
+		}
+
+		readFrom(channel, FileTransfer.acquireBuffer(), data, 0, promise);
+	}
+
+	/**
+	 * Reads the next chunk through the pooled direct buffer. Reading straight into a heap
+	 * array would make the JDK allocate a temporary direct buffer as large as the file.
+	 */
+	private void readFrom(final AsynchronousFileChannel channel, final ByteBuffer buffer, final byte[] data, final int offset, final Promise<byte[]> promise) {
+		if (offset == data.length) {
+			finish(channel, buffer);
+			promise.complete(data);
+			return;
+		}
+
+		try {
+			buffer.clear();
+			buffer.limit(Math.min(buffer.capacity(), data.length - offset));
+			channel.read(buffer, offset, null, new CompletionHandler<Integer, Void>() {
+				public void completed(Integer read, Void attachment) {
+					if (read == -1) {
+						// The file was truncated while reading it
+						finish(channel, buffer);
+						promise.complete(Arrays.copyOf(data, offset));
+						return;
+					}
+					buffer.flip();
+					buffer.get(data, offset, read);
+					readFrom(channel, buffer, data, offset + read, promise);
+				}
+
+				public void failed(Throwable t, Void attachment) {
+					finish(channel, buffer);
+					promise.fail(t);
+				}
+			});
+		} catch(Throwable t) {
+			finish(channel, buffer);
+			promise.fail(t);
+		}
+	}
+
+	/**
+	 * Atomically replaces the contents of the file with the specified data, see {@link AtomicWriter}.
+	 *
+	 * @param data
+	 * @return a promise holding the number of bytes written
+	 */
+	public Promise<Long> write(final byte[] data) {
+		final Promise<Long> promise = new Promise<Long>();
+		execute(promise, new Runnable() {
+			public void run() {
+				startWrite(data, promise);
+			}
+		});
+		return promise;
+	}
+
+	private void startWrite(byte[] data, Promise<Long> promise) {
+		final Path target;
+		final Path temp;
+		final AsynchronousFileChannel channel;
+		try {
+			target = AtomicWriter.resolveTarget(file.toPath());
+			temp = AtomicWriter.createTemp(target);
+			try {
+				channel = AsynchronousFileChannel.open(temp, Collections.singleton(StandardOpenOption.WRITE), executor);
+			} catch(IOException | RuntimeException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+		} catch(Throwable t) {
+			promise.fail(t);
+			return;
+		}
+
+		writeTo(channel, FileTransfer.acquireBuffer(), data, 0, temp, target, promise);
+	}
+
+	/**
+	 * Writes the next chunk through the pooled direct buffer, see {@link #readFrom}.
+	 */
+	private void writeTo(final AsynchronousFileChannel channel, final ByteBuffer buffer, final byte[] data, final int offset, final Path temp, final Path target, final Promise<Long> promise) {
+		if (offset == data.length) {
+			FileTransfer.releaseBuffer(buffer);
+			try {
+				channel.close();
+				AtomicWriter.commit(temp, target);
+				promise.complete((long)data.length);
+			} catch(Throwable t) {
+				abortWrite(channel, null, temp, promise, t);
+			}
+			return;
+		}
+
+		try {
+			buffer.clear();
+			buffer.put(data, offset, Math.min(buffer.capacity(), data.length - offset));
+			buffer.flip();
+			channel.write(buffer, offset, null, new CompletionHandler<Integer, Void>() {
+				public void completed(Integer written, Void attachment) {
+					writeTo(channel, buffer, data, offset + written, temp, target, promise);
+				}
+
+				public void failed(Throwable t, Void attachment) {
+					abortWrite(channel, buffer, temp, promise, t);
+				}
+			});
+		} catch(Throwable t) {
+			abortWrite(channel, buffer, temp, promise, t);
+		}
+	}
+
+	private void abortWrite(AsynchronousFileChannel channel, ByteBuffer buffer, Path temp, Promise<Long> promise, Throwable t) {
+		finish(channel, buffer);
+		try {
+			Files.deleteIfExists(temp);
+		} catch(IOException ignore) {}
+		promise.fail(t);
+	}
+
+	/**
+	 * Reads the contents of the file to the specified output stream.
+	 *
+	 * @param os
+	 * @return a promise holding the number of bytes copied
+	 */
+	public Promise<Long> readTo(final OutputStream os) {
+		return submit(new Callable<Long>() {
+			public Long call() {
+				return file.readTo(os);
+			}
+		});
+	}
+
+	/**
+	 * Copies the file to the specified directory.
+	 *
+	 * @param destDir
+	 * @return a promise holding the number of bytes copied
+	 */
+	public Promise<Long> copyToDirectory(final File destDir) {
+		return submit(new Callable<Long>() {
+			public Long call() {
+				return file.copyToDirectory(destDir);
+			}
+		});
+	}
+
+	/**
+	 * Moves the file to the specified directory, see {@link File#move(java.io.File, boolean, boolean)}.
+	 *
+	 * @param newDirectory
+	 * @param createFolders
+	 * @param overwrite
+	 * @return a promise holding the moved file
+	 */
+	public Promise<File> move(final java.io.File newDirectory, final boolean createFolders, final boolean overwrite) {
+		return submit(new Callable<File>() {
+			public File call() throws IOException {
+				return file.move(newDirectory, createFolders, overwrite);
+			}
+		});
+	}
+
+	/**
+	 * Runs the task on the executor, so opening the file does not block the caller either.
+	 */
+	private void execute(Promise<?> promise, Runnable task) {
+		try {
+			executor.execute(task);
+		} catch(Throwable t) {
+			promise.fail(t);
+		}
+	}
+
+	private <T> Promise<T> submit(final Callable<T> task) {
+		final Promise<T> promise = new Promise<T>();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					if (promise.isDone())
+						return;
+
+					try {
+						promise.complete(task.call());
+					} catch(Throwable t) {
+						promise.fail(t);
+					}
+				}
+			});
+		} catch(Throwable t) {
+			promise.fail(t);
+		}
+
+		return promise;
+	}
+
+	/**
+	 * Closes the channel and returns the buffer to the pool; runs once per operation.
+	 */
+	private static void finish(AsynchronousFileChannel channel, ByteBuffer buffer) {
+		closeQuietly(channel);
+		if (buffer != null)
+			FileTransfer.releaseBuffer(buffer);
+	}
+
+	private static void closeQuietly(AsynchronousFileChannel channel) {
+		try {
+			channel.close();
+		} catch(IOException ignore) {}
+	}
+}
@@ -0,0 +1,229 @@
+package org.cadams.jbouquet.file;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Write engine used by {@link File} which never exposes a partially written file.
+ *
+ * <p>
+ * The content is written to a hidden temporary sibling of the target (".name.random.tmp")
+ * through a pooled direct buffer and then renamed over the target with an atomic move,
+ * so readers either see the previous contents or the complete new contents. When
+ * {@code sync} is requested the temporary file is forced to disk before the rename and
+ * the parent directory is forced afterwards, which makes the rename itself durable. A
+ * directory which cannot be forced fails the write on POSIX systems; elsewhere directories
+ * cannot be opened and the step is skipped.
+ * </p>
+ * <p>
+ * Rewriting a symbolic link replaces the file it points to, and a replaced file keeps its
+ * permissions and, where the process is allowed to set them, its owner and group.
+ * </p>
+ *
+ * @author cta
+ */
+public final class AtomicWriter {
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private AtomicWriter() {
+	}
+
+	/**
+	 * Atomically replaces the contents of the target with the specified data.
+	 *
+	 * @param target
+	 * @param data
+	 * @param sync force the data and the rename to disk before returning
+	 * @throws IOException
+	 */
+	public static void write(java.io.File target, byte[] data, boolean sync) throws IOException {
+		Path path = resolveTarget(target.toPath());
+		Path temp = writeTemp(path, data, sync);
+		commit(temp, path);
+		if (sync)
+			forceDirectory(path.toAbsolutePath().getParent());
+	}
+
+	/**
+	 * Atomically replaces the contents of the target with the contents of the stream.
+	 * The stream is not closed.
+	 *
+	 * @param target
+	 * @param is
+	 * @param sync force the data and the rename to disk before returning
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public static long write(java.io.File target, InputStream is, boolean sync) throws IOException {
+		Path path = resolveTarget(target.toPath());
+		Path temp = createTemp(path);
+		long count;
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			ReadableByteChannel source = (is instanceof FileInputStream) ? ((FileInputStream)is).getChannel() : Channels.newChannel(is);
+			count = FileTransfer.transfer(source, channel);
+			if (sync)
+				channel.force(true);
+		} catch(IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		commit(temp, path);
+		if (sync)
+			forceDirectory(path.toAbsolutePath().getParent());
+
+		return count;
+	}
+
+	/**
+	 * Writes the data to a new temporary sibling of the target and returns its path.
+	 */
+	static Path writeTemp(Path target, byte[] data, boolean sync) throws IOException {
+		Path temp = createTemp(target);
+		ByteBuffer buffer = FileTransfer.acquireBuffer();
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			// Heap arrays are staged through the pooled direct buffer in chunks, otherwise
+			// the JDK allocates a temporary direct buffer as large as the array.
+			int offset = 0;
+			while (offset < data.length) {
+				int length = Math.min(buffer.capacity(), data.length - offset);
+				buffer.clear();
+				buffer.put(data, offset, length);
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				offset += length;
+			}
+
+			if (sync)
+				channel.force(true);
+		} catch(IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		} finally {
+			FileTransfer.releaseBuffer(buffer);
+		}
+
+		return temp;
+	}
+
+	/**
+	 * Renames the temporary file over the target, atomically when the file system allows it.
+	 */
+	static void commit(Path temp, Path target) throws IOException {
+		try {
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch(IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the file a write to the target replaces: the file a symbolic link points to,
+	 * rather than the link itself.
+	 */
+	static Path resolveTarget(Path target) throws IOException {
+		if (Files.exists(target))
+			return target.toRealPath();
+
+		return target;
+	}
+
+	/**
+	 * Copies the POSIX permissions, and the owner and group where allowed, of one file to another.
+	 */
+	static void copyPermissions(Path from, Path to) throws IOException {
+		PosixFileAttributeView source = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+		PosixFileAttributeView target = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+		if (source == null || target == null)
+			return;
+
+		PosixFileAttributes attributes = source.readAttributes();
+		target.setPermissions(attributes.permissions());
+
+		// only privileged processes may give a file away; the permissions above still apply
+		try {
+			if (!attributes.owner().equals(target.getOwner()))
+				target.setOwner(attributes.owner());
+		} catch(IOException ignore) {}
+		try {
+			target.setGroup(attributes.group());
+		} catch(IOException ignore) {}
+	}
+
+	/**
+	 * Forces the directory entry changes of the directory to disk, failing if they could
+	 * not be forced. Platforms which do not allow a directory to be opened, which are not
+	 * POSIX ones, are skipped.
+	 */
+	static void forceDirectory(Path directory) throws IOException {
+		if (directory == null)
+			return;
+
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch(IOException e) {
+			if (directory.getFileSystem().supportedFileAttributeViews().contains("posix"))
+				throw e;
+			return;
+		}
+
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Creates an empty hidden temporary sibling of the target, with the permissions of the
+	 * target if it exists. Pass a target resolved with {@link #resolveTarget(Path)}.
+	 */
+	static Path createTemp(Path target) throws IOException {
+		Path parent = target.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+
+		// Files.createTempFile would restrict the permissions to the owner, which the
+		// target would then inherit through the rename.
+		for (;;) {
+			String name = "." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMP_SUFFIX;
+			Path temp = (parent == null) ? target.resolveSibling(name) : parent.resolve(name);
+			try {
+				Files.createFile(temp);
+			} catch(FileAlreadyExistsException retry) {
+				continue;
+			}
+
+			try {
+				if (Files.exists(target))
+					copyPermissions(target, temp);
+			} catch(IOException | RuntimeException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			return temp;
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package org.cadams.jbouquet.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches directories for new, changed, deleted and unhidden files.
+ *
+ * <p>
+ * Changes are picked up through the platform {@code WatchService} (inotify on Linux), so
+ * consumers no longer need to rescan spool directories. Directories which can not be
+ * registered, or every directory when polling is forced, are scanned at a fixed interval
+ * and compared with the previous scan instead.
+ * </p>
+ * <p>
+ * Raw events are debounced: a file is reported once no further events arrived for it
+ * during the debounce window, and the events it received in the meantime are coalesced
+ * (a file created and then written is one {@code CREATE}, a file created and deleted
+ * again is not reported at all). A hidden file renamed to its visible name within the
+ * window is reported as {@code UNHIDE}. Hidden files themselves, including the temporary
+ * files of {@link AtomicWriter}, are not reported unless {@link #setIncludeHidden(boolean)}
+ * is enabled.
+ * </p>
+ * <p>
+ * If the operating system drops events for a directory, every file in it is reported as
+ * {@code CREATE}; listeners must therefore tolerate duplicate events.
+ * </p>
+ *
+ * @author cta
+ */
+public class DirectoryWatcher implements Closeable {
+	private static final Logger logger = Logger.getLogger(DirectoryWatcher.class.getName());
+
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 100;
+	public static final long DEFAULT_POLL_INTERVAL_MILLIS = 1000;
+
+	private static final long IDLE_WAIT_MILLIS = 1000;
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private final long debounceMillis;
+	private final long pollIntervalMillis;
+	private final WatchService service;
+	private final Map<Path, Map<String, FileState>> polled = new ConcurrentHashMap<Path, Map<String, FileState>>();
+	private final List<FileEventListener> listeners = new CopyOnWriteArrayList<FileEventListener>();
+	private final Map<Path, Pending> pending = new LinkedHashMap<Path, Pending>();
+	private volatile boolean includeHidden = false;
+	private volatile boolean closed = false;
+	private long lastPoll = 0;
+	private Thread thread;
+
+	/**
+	 * Creates a watcher using the platform watch service and the default debounce window.
+	 */
+	public DirectoryWatcher() {
+		this(DEFAULT_DEBOUNCE_MILLIS, DEFAULT_POLL_INTERVAL_MILLIS, false);
+	}
+
+	/**
+	 * @param debounceMillis how long a file must be quiet before its events are reported
+	 * @param pollIntervalMillis how often polled directories are scanned
+	 * @param forcePolling scan every directory instead of using the platform watch service
+	 */
+	public DirectoryWatcher(long debounceMillis, long pollIntervalMillis, boolean forcePolling) {
+		this.debounceMillis = debounceMillis;
+		this.pollIntervalMillis = pollIntervalMillis;
+
+		WatchService watchService = null;
+		if (!forcePolling) {
+			try {
+				watchService = FileSystems.getDefault().newWatchService();
+			} catch(IOException | UnsupportedOperationException e) {
+				logger.warn("No watch service available, falling back to polling", e);
+			}
+		}
+		this.service = watchService;
+	}
+
+	public void addListener(FileEventListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(FileEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	public void setIncludeHidden(boolean includeHidden) {
+		this.includeHidden = includeHidden;
+	}
+
+	/**
+	 * Starts watching the specified directory. Files already present are not reported.
+	 *
+	 * @param directory
+	 */
+	public void watch(java.io.File directory) {
+		if (closed)
+			throw new IllegalStateException("The watcher has been closed");
+		if (!directory.isDirectory())
+			throw new FileException("'" + directory + "' is not a directory");
+
+		Path path = directory.toPath().toAbsolutePath();
+		boolean registered = false;
+		if (service != null) {
+			try {
+				path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				registered = true;
+			} catch(IOException | UnsupportedOperationException e) {
+				logger.warn("Could not register " + path + " with the watch service, falling back to polling", e);
+			}
+		}
+
+		if (!registered) {
+			try {
+				polled.put(path, scan(path));
+			} catch(IOException e) {
+				throw new FileException(e);
+			}
+		}
+
+		start();
+	}
+
+	/**
+	 * Stops watching every directory. Pending events are discarded.
+	 */
+	public void close() {
+		Thread current;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			current = thread;
+		}
+
+		if (service != null) {
+			try {
+				service.close();
+			} catch(IOException ignore) {}
+		}
+
+		if (current != null) {
+			current.interrupt();
+			if (current != Thread.currentThread()) {
+				try {
+					current.join();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private synchronized void start() {
+		if (thread != null || closed)
+			return;
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					watchLoop();
+				} catch(ClosedWatchServiceException | InterruptedException e) {
+					// closed
+				}
+			}
+		}, "directory-watcher-" + instances.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void watchLoop() throws InterruptedException {
+		while (!closed) {
+			long wait = pending.isEmpty() ? IDLE_WAIT_MILLIS : debounceMillis;
+			if (!polled.isEmpty())
+				wait = Math.min(wait, Math.max(1, lastPoll + pollIntervalMillis - System.currentTimeMillis()));
+
+			if (service != null) {
+				WatchKey key = service.poll(wait, TimeUnit.MILLISECONDS);
+				while (key != null) {
+					processKey(key);
+					key = service.poll();
+				}
+			} else {
+				Thread.sleep(wait);
+			}
+
+			long now = System.currentTimeMillis();
+			if (!polled.isEmpty() && now - lastPoll >= pollIntervalMillis) {
+				pollDirectories();
+				lastPoll = now;
+			}
+
+			flush(now);
+		}
+	}
+
+	private void processKey(WatchKey key) {
+		Path directory = (Path)key.watchable();
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			WatchEvent.Kind<?> kind = event.kind();
+			if (kind == StandardWatchEventKinds.OVERFLOW) {
+				rescan(directory);
+				continue;
+			}
+
+			Path name = (Path)event.context();
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE)
+				record(directory.resolve(name), FileEvent.Kind.CREATE);
+			else if (kind == StandardWatchEventKinds.ENTRY_MODIFY)
+				record(directory.resolve(name), FileEvent.Kind.MODIFY);
+			else if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+				record(directory.resolve(name), FileEvent.Kind.DELETE);
+		}
+
+		// A key which can not be reset belongs to a directory which is gone
+		key.reset();
+	}
+
+	private void rescan(Path directory) {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				record(entry, FileEvent.Kind.CREATE);
+			}
+		} catch(IOException e) {
+			logger.warn("Could not rescan " + directory + " after dropped events", e);
+		}
+	}
+
+	private void pollDirectories() {
+		for (Map.Entry<Path, Map<String, FileState>> entry : polled.entrySet()) {
+			Path directory = entry.getKey();
+			Map<String, FileState> previous = entry.getValue();
+			Map<String, FileState> current;
+			try {
+				current = scan(directory);
+			} catch(IOException e) {
+				logger.warn("Could not poll " + directory, e);
+				continue;
+			}
+
+			for (Map.Entry<String, FileState> file : current.entrySet()) {
+				FileState before = previous.get(file.getKey());
+				if (before == null)
+					record(directory.resolve(file.getKey()), FileEvent.Kind.CREATE);
+				else if (!before.equals(file.getValue()))
+					record(directory.resolve(file.getKey()), FileEvent.Kind.MODIFY);
+			}
+			for (String name : previous.keySet()) {
+				if (!current.containsKey(name))
+					record(directory.resolve(name), FileEvent.Kind.DELETE);
+			}
+
+			entry.setValue(current);
+		}
+	}
+
+	private static Map<String, FileState> scan(Path directory) throws IOException {
+		Map<String, FileState> result = new HashMap<String, FileState>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+					result.put(entry.getFileName().toString(), new FileState(attributes.lastModifiedTime().toMillis(), attributes.size()));
+				} catch(IOException removed) {}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Coalesces a raw event with the events already pending for the same file.
+	 */
+	private void record(Path path, FileEvent.Kind kind) {
+		long now = System.currentTimeMillis();
+		boolean transientFile = false;
+		Pending existing = pending.remove(path);
+		if (existing != null) {
+			if (existing.kind == FileEvent.Kind.CREATE && kind == FileEvent.Kind.MODIFY) {
+				kind = FileEvent.Kind.CREATE;
+			} else if (existing.kind == FileEvent.Kind.CREATE && kind == FileEvent.Kind.DELETE) {
+				// A hidden file written and renamed within the window: the delete is
+				// kept so flush() can still pair it with the create of the visible name
+				if (!isHidden(path.getFileName().toString()))
+					return;
+				transientFile = true;
+			} else if (existing.kind == FileEvent.Kind.DELETE && kind == FileEvent.Kind.CREATE) {
+				kind = existing.transientFile ? FileEvent.Kind.CREATE : FileEvent.Kind.MODIFY;
+			}
+		}
+
+		// Re-inserting keeps the pending events in the order they last changed
+		pending.put(path, new Pending(kind, now, transientFile));
+	}
+
+	private void flush(long now) {
+		Map<Path, Pending> due = new LinkedHashMap<Path, Pending>();
+		Iterator<Map.Entry<Path, Pending>> iterator = pending.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Path, Pending> entry = iterator.next();
+			if (now - entry.getValue().lastSeen < debounceMillis)
+				break;
+
+			due.put(entry.getKey(), entry.getValue());
+			iterator.remove();
+		}
+
+		for (Map.Entry<Path, Pending> entry : due.entrySet()) {
+			Path path = entry.getKey();
+			if (entry.getValue() == null)
+				continue;
+			FileEvent.Kind kind = entry.getValue().kind;
+
+			String name = path.getFileName().toString();
+			if (isHidden(name)) {
+				// a file which came and went within the window was never reported as created
+				if (includeHidden && !entry.getValue().transientFile)
+					fire(new FileEvent(kind, new File(path.toFile())));
+				continue;
+			}
+
+			if (kind == FileEvent.Kind.CREATE) {
+				// A rename of ".name" to "name" shows up as a delete and a create
+				Path hidden = path.resolveSibling("." + name);
+				if (due.get(hidden) != null && due.get(hidden).kind == FileEvent.Kind.DELETE) {
+					due.put(hidden, null);
+					kind = FileEvent.Kind.UNHIDE;
+				} else if (pending.containsKey(hidden) && pending.get(hidden).kind == FileEvent.Kind.DELETE) {
+					pending.remove(hidden);
+					kind = FileEvent.Kind.UNHIDE;
+				}
+			}
+
+			fire(new FileEvent(kind, new File(path.toFile())));
+		}
+	}
+
+	private static boolean isHidden(String name) {
+		return name.startsWith(".");
+	}
+
+	private void fire(FileEvent event) {
+		for (FileEventListener listener : listeners) {
+			try {
+				listener.onEvent(event);
+			} catch(RuntimeException e) {
+				logger.error("Listener failed handling " + event, e);
+			}
+		}
+	}
+
+	private static class Pending {
+		private final FileEvent.Kind kind;
+		private final long lastSeen;
+		private final boolean transientFile;
+
+		Pending(FileEvent.Kind kind, long lastSeen, boolean transientFile) {
+			this.kind = kind;
+			this.lastSeen = lastSeen;
+			this.transientFile = transientFile;
+		}
+	}
+
+	private static class FileState {
+		private final long modified;
+		private final long size;
+
+		FileState(long modified, long size) {
+			this.modified = modified;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FileState))
+				return false;
+			FileState other = (FileState)obj;
+			return modified == other.modified && size == other.size;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(modified ^ size);
+		}
+	}
+}
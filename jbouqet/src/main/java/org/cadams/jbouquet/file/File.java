@@ -1,10 +1,20 @@
 package org.cadams.jbouquet.file;
 
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -68,13 +78,16 @@ public class File extends java.io.File {
 	
 	/**
 	  * Copies from the specified InputStream to the specified OutputStream.
+	  * <p>
+	  * File streams are copied with a zero-copy channel transfer, see {@link FileTransfer}.
 	  * 
 	  * @param is
 	  * @param os
+	  * @return the number of bytes copied
 	  */
-	 public static void copy(InputStream is, OutputStream os, boolean closeInput) {
+	 public static long copy(InputStream is, OutputStream os, boolean closeInput) {
 		try {
-			IOUtils.copy(is, os);
+			return FileTransfer.copy(is, os);
 		} catch (Exception e) {
 			throw new FileException(e);
 		} finally {
@@ -87,13 +100,23 @@ public class File extends java.io.File {
 	 /**
 	  * Copies the contents of this file to the specified directory.
 	  * <p>
-	  * The file will have the same filename as the original file.
+	  * The file will have the same filename as the original file. A directory is copied
+	  * with everything below it, in parallel, see {@link FileTree}.
 	  * 
 	  * @param destDir
+	  * @return the number of bytes copied
 	  */
-	 public void copyToDirectory(File destDir) {
+	 public long copyToDirectory(File destDir) {
 		 try {
-			 FileUtils.copyFileToDirectory(this, destDir);
+			 if (destDir.exists() && !destDir.isDirectory())
+				 throw new IllegalArgumentException("Destination '" + destDir + "' is not a directory");
+
+			 if (this.isDirectory()) {
+				 FileTreeResult result = new FileTree().copy(this, new java.io.File(destDir, this.getName()));
+				 result.throwIfFailed();
+				 return result.getBytes();
+			 }
+			 return FileTransfer.copy(this, new java.io.File(destDir, this.getName()), true);
 		 } catch(Exception e) {
 			 throw new FileException(e);
 		 }
@@ -130,16 +153,55 @@ public class File extends java.io.File {
 	 * @return
 	 */
 	public File move(final java.io.File newDirectory, final boolean createFolders, boolean overwrite) throws IOException {
-		File file = new File(newDirectory, this.getName());
-		
-		if (overwrite) {
-			if (file.exists()) 
-				file.delete();
+		return moveTo(newDirectory, createFolders, overwrite).getFile();
+	}
+	
+	/**
+	 * Moves the file to specified path and reports how the move was carried out.
+	 * 
+	 * <p>
+	 * The file is renamed when possible; a move to another file system is copied, verified
+	 * and then deleted, see {@link FileMover}. A directory is renamed, or copied in parallel
+	 * and deleted once every entry was copied, see {@link FileTree}; it is never merged into
+	 * an existing directory.
+	 * </p>
+	 * <p>
+	 * NOTE: This is a destructive call and the current file reference will
+	 * now point to a non-existent file. You must use the File reference of the result.
+	 * </p>
+	 * @return
+	 */
+	public MoveResult moveTo(final java.io.File newDirectory, final boolean createFolders, boolean overwrite) throws IOException {
+		if (!newDirectory.exists()) {
+			if (!createFolders)
+				throw new FileNotFoundException("Destination directory '" + newDirectory + "' does not exist [createDestDir=false]");
+			FileUtils.forceMkdir(newDirectory);
+		} else if (!newDirectory.isDirectory()) {
+			throw new IOException("Destination '" + newDirectory + "' is not a directory");
 		}
 		
-		org.apache.commons.io.FileUtils.moveFileToDirectory(this, newDirectory, createFolders);
-		
-		return file;
+		File target = new File(newDirectory, this.getName());
+		if (Files.isDirectory(this.toPath(), LinkOption.NOFOLLOW_LINKS))
+			return moveDirectory(target);
+
+		return FileMover.move(this, target, overwrite, true);
+	}
+
+	private MoveResult moveDirectory(File target) throws IOException {
+		long start = System.nanoTime();
+		if (Files.exists(target.toPath(), LinkOption.NOFOLLOW_LINKS))
+			throw new FileAlreadyExistsException(target.toString());
+
+		try {
+			Files.move(this.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return new MoveResult(target, MoveResult.Strategy.RENAME, 0, System.nanoTime() - start);
+		} catch(AtomicMoveNotSupportedException e) {
+			// another file system, copied below
+		}
+
+		FileTreeResult result = new FileTree().move(this, target);
+		result.throwIfFailed();
+		return new MoveResult(target, MoveResult.Strategy.COPY_AND_DELETE, result.getBytes(), System.nanoTime() - start);
 	}	
 	
 	/**
@@ -184,15 +246,23 @@ public class File extends java.io.File {
 	
 	/**
 	 * Writes the specified text to the file.
+	 * <p>
+	 * The file is replaced atomically, see {@link AtomicWriter}.
 	 * 
 	 * @param text
 	 */
 	public void writeString(String text) {
-		try {
-			FileUtils.writeStringToFile(this, text);
-		} catch(Exception e) {
-			throw new FileException(e);
-		}
+		writeString(text, false);
+	}
+	
+	/**
+	 * Writes the specified text to the file, optionally forcing it to disk before returning.
+	 * 
+	 * @param text
+	 * @param sync
+	 */
+	public void writeString(String text, boolean sync) {
+		write(text.getBytes(), sync);
 	}
 	
 	/**
@@ -202,11 +272,24 @@ public class File extends java.io.File {
 	 * @param is
 	 */
 	public void write(InputStream is) {
+		write(is, false);
+	}
+	
+	/**
+	 * Writes the specified input stream to the file, optionally forcing it to disk before returning.
+	 * <p>
+	 * This call will automatically close the InputStream.
+	 * @param is
+	 * @param sync
+	 * @return the number of bytes written
+	 */
+	public long write(InputStream is, boolean sync) {
 		try {
-			FileOutputStream os = new FileOutputStream(this);
-			File.copy(is, os, true);
+			return AtomicWriter.write(this, is, sync);
 		} catch(Exception e) {
 			throw new FileException(e);
+		} finally {
+			IOUtils.closeQuietly(is);
 		}
 	}
 	
@@ -215,8 +298,17 @@ public class File extends java.io.File {
 	 * @param data
 	 */
 	public void write(byte [] data) {
+		write(data, false);
+	}
+	
+	/**
+	 * Writes the specified byte array to the file, optionally forcing it to disk before returning.
+	 * @param data
+	 * @param sync
+	 */
+	public void write(byte [] data, boolean sync) {
 		try {
-			FileUtils.writeByteArrayToFile(this, data);
+			AtomicWriter.write(this, data, sync);
 		} catch(Exception e) {
 			throw new FileException(e);
 		}
@@ -234,6 +326,86 @@ public class File extends java.io.File {
 		}
 	}
 	
+	/**
+	 * Lazily reads the lines of the file using the platform default charset.
+	 * <p>
+	 * Memory use stays constant regardless of the file size. The returned iterator
+	 * closes the file once exhausted and must be closed if abandoned earlier.
+	 * @return
+	 */
+	public RecordIterator lines() {
+		return lines(Charset.defaultCharset());
+	}
+	
+	/**
+	 * Lazily reads the lines of the file using the specified charset.
+	 * @param charset
+	 * @return
+	 */
+	public RecordIterator lines(Charset charset) {
+		return new RecordIterator(openChannel(), charset);
+	}
+	
+	/**
+	 * Lazily reads the records of the file, split on the specified delimiter, using the
+	 * platform default charset.
+	 * @param delimiter
+	 * @return
+	 */
+	public RecordIterator records(String delimiter) {
+		return records(delimiter, Charset.defaultCharset());
+	}
+	
+	/**
+	 * Lazily reads the records of the file, split on the specified delimiter.
+	 * @param delimiter
+	 * @param charset
+	 * @return
+	 */
+	public RecordIterator records(String delimiter, Charset charset) {
+		return new RecordIterator(openChannel(), charset, delimiter);
+	}
+	
+	/**
+	 * Processes the lines of the file concurrently on the default fork-join pool.
+	 * <p>
+	 * The file is split into chunks aligned to line boundaries and each chunk is handed
+	 * to the processor on its own worker, see {@link ParallelRecords}.
+	 * @param processor
+	 * @return the combined result of every chunk, or null for an empty file
+	 */
+	public <R> R processLines(RecordProcessor<R> processor) {
+		try {
+			return ParallelRecords.processLines(this, Charset.defaultCharset(), processor, null);
+		} catch(IOException e) {
+			throw new FileException(e);
+		}
+	}
+	
+	/**
+	 * Processes the records of the file, split on the specified delimiter, concurrently.
+	 * @param delimiter
+	 * @param charset
+	 * @param processor
+	 * @param pool the pool to run on, or null for the default pool
+	 * @return the combined result of every chunk, or null for an empty file
+	 */
+	public <R> R processRecords(String delimiter, Charset charset, RecordProcessor<R> processor, ForkJoinPool pool) {
+		try {
+			return ParallelRecords.processRecords(this, delimiter, charset, processor, pool);
+		} catch(IOException e) {
+			throw new FileException(e);
+		}
+	}
+	
+	private FileChannel openChannel() {
+		try {
+			return FileUtils.openInputStream(this).getChannel();
+		} catch(Exception e) {
+			throw new FileException(e);
+		}
+	}
+	
 	/**
 	 * Reads the file into a byte array.
 	 * @return
@@ -246,15 +418,39 @@ public class File extends java.io.File {
 		}
 	}
 	
+	/**
+	 * Maps the file into memory read-only so it can be scanned off-heap without
+	 * copying it into a byte array. The caller must close the returned view.
+	 * @return
+	 */
+	public MappedFile map() {
+		return map(MapMode.READ_ONLY);
+	}
+	
+	/**
+	 * Maps the file into memory with the specified mode. The caller must close the
+	 * returned view to release the mapping.
+	 * @param mode
+	 * @return
+	 */
+	public MappedFile map(MapMode mode) {
+		try {
+			return MappedFile.map(this, mode);
+		} catch(Exception e) {
+			throw new FileException(e);
+		}
+	}
+	
 	/**
 	 * Reads the contents of the file to the specified outputstream.
 	 * @param stream
+	 * @return the number of bytes copied
 	 */
-	public void readTo(OutputStream os) {
+	public long readTo(OutputStream os) {
 		InputStream is = null;
 		try {
 			is = FileUtils.openInputStream(this);
-			IOUtils.copy(is, os);
+			return FileTransfer.copy(is, os);
 		} catch(Exception e) {
 			throw new FileException(e);
 		} finally {
@@ -262,6 +458,36 @@ public class File extends java.io.File {
 		}
 	}
 
+	/**
+	 * Returns the non-blocking counterpart of this file, running on the shared I/O executor.
+	 * @return
+	 */
+	public AsyncFile async() {
+		return new AsyncFile(this);
+	}
+	
+	/**
+	 * Returns the non-blocking counterpart of this file, running on the specified I/O executor.
+	 * @param executor
+	 * @return
+	 */
+	public AsyncFile async(ExecutorService executor) {
+		return new AsyncFile(this, executor);
+	}
+
+	/**
+	 * Starts watching this directory and reports changes to the specified listener.
+	 * The caller must close the returned watcher.
+	 * @param listener
+	 * @return
+	 */
+	public DirectoryWatcher watch(FileEventListener listener) {
+		DirectoryWatcher watcher = new DirectoryWatcher();
+		watcher.addListener(listener);
+		watcher.watch(this);
+		return watcher;
+	}
+
 	/**
 	 * Creates the directory structure represented by this file or directory
 	 */
@@ -273,15 +499,26 @@ public class File extends java.io.File {
 		}
 	}
 	
+	/**
+	 * Deletes the directory and everything below it, in parallel, see {@link FileTree}.
+	 * Every entry is attempted; the first failure is then thrown as a {@link FileException}.
+	 */
 	public void deleteDirectory() {
-		try {
-			FileUtils.deleteDirectory(this);
-		} catch(Exception e) {
-			throw new FileException(e);
-		}
+		if (this.exists() && !this.isDirectory())
+			throw new FileException(new IllegalArgumentException(this + " is not a directory"));
+
+		new FileTree().delete(this).throwIfFailed();
 	}
 
+	/**
+	 * Deletes the file, or the directory and everything below it, without throwing.
+	 *
+	 * @return true if everything was deleted
+	 */
 	public boolean deleteQuietly() {
-		return FileUtils.deleteQuietly(this);
+		if (!this.isDirectory())
+			return this.delete();
+
+		return new FileTree().delete(this).isSuccessful();
 	}
 }
@@ -0,0 +1,55 @@
+package org.cadams.jbouquet.file;
+
+/**
+ * A change to a file in a directory observed by a {@link DirectoryWatcher}.
+ *
+ * @author cta
+ */
+public class FileEvent {
+	/**
+	 * The kind of change, after debouncing and coalescing the raw file system events.
+	 */
+	public enum Kind {
+		/**
+		 * A new file appeared, including one renamed into the directory.
+		 */
+		CREATE,
+
+		/**
+		 * An existing file was changed or replaced.
+		 */
+		MODIFY,
+
+		/**
+		 * A file was removed or renamed out of the directory.
+		 */
+		DELETE,
+
+		/**
+		 * A hidden file was made visible with {@link File#unhide()}, which is how producers
+		 * hand a completed file over to consumers.
+		 */
+		UNHIDE
+	}
+
+	private final Kind kind;
+	private final File file;
+
+	public FileEvent(Kind kind, File file) {
+		this.kind = kind;
+		this.file = file;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + file;
+	}
+}
@@ -0,0 +1,15 @@
+package org.cadams.jbouquet.file;
+
+/**
+ * Receives the events of a {@link DirectoryWatcher}.
+ *
+ * <p>
+ * Events are delivered one at a time on the watcher thread, so a slow listener delays
+ * all following events and should hand work off to its own executor.
+ * </p>
+ *
+ * @author cta
+ */
+public interface FileEventListener {
+	void onEvent(FileEvent event);
+}
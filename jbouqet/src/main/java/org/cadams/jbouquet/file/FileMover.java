@@ -0,0 +1,130 @@
+package org.cadams.jbouquet.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Move engine used by {@link File#move(java.io.File, boolean, boolean)}.
+ *
+ * <p>
+ * The file is first renamed with an atomic {@code Files.move}. If the destination is on
+ * another file system the rename is impossible, so the file is copied with a zero-copy
+ * channel transfer into a hidden temporary file next to the destination, optionally
+ * verified with a CRC32 of both copies, renamed into place and finally the source is
+ * deleted. Readers of the destination directory therefore never see a partial file.
+ * </p>
+ * <p>
+ * The returned {@link MoveResult} reports which strategy was used and how long it took.
+ * Copying moves are logged at INFO since they are orders of magnitude slower than renames.
+ * </p>
+ *
+ * @author cta
+ */
+public final class FileMover {
+	private static final Logger logger = Logger.getLogger(FileMover.class.getName());
+
+	private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+	private FileMover() {
+	}
+
+	/**
+	 * Moves the source file to the target file.
+	 *
+	 * @param source
+	 * @param target the new file, not its directory
+	 * @param overwrite replace the target if it exists
+	 * @param verify compare checksums of both copies before deleting the source of a copying move
+	 * @return
+	 * @throws IOException
+	 */
+	public static MoveResult move(java.io.File source, java.io.File target, boolean overwrite, boolean verify) throws IOException {
+		long start = System.nanoTime();
+		Path from = source.toPath();
+		Path to = target.toPath();
+
+		if (Files.isDirectory(from, LinkOption.NOFOLLOW_LINKS))
+			throw new IOException("Source '" + source + "' is a directory, use FileTree.move instead");
+		if (!overwrite && Files.exists(to, LinkOption.NOFOLLOW_LINKS))
+			throw new FileAlreadyExistsException(target.toString());
+
+		try {
+			// An atomic rename always replaces the target, the overwrite check is done above
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+			MoveResult result = new MoveResult(new File(target), MoveResult.Strategy.RENAME, 0, System.nanoTime() - start);
+			if (logger.isDebugEnabled())
+				logger.debug("Moved " + source + ": " + result);
+			return result;
+		} catch(AtomicMoveNotSupportedException e) {
+			// The target is on another file system
+		}
+
+		long bytes = copyAcrossFileSystems(from, to, verify);
+		Files.delete(from);
+
+		MoveResult result = new MoveResult(new File(target), MoveResult.Strategy.COPY_AND_DELETE, bytes, System.nanoTime() - start);
+		if (logger.isInfoEnabled())
+			logger.info("Moved " + source + " across file systems: " + result);
+		return result;
+	}
+
+	private static long copyAcrossFileSystems(Path from, Path to, boolean verify) throws IOException {
+		Path temp = AtomicWriter.createTemp(to);
+		try {
+			long bytes;
+			try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				bytes = FileTransfer.transfer(in, out);
+				out.force(true);
+			}
+
+			if (verify) {
+				long expected = checksum(from);
+				long actual = checksum(temp);
+				if (expected != actual)
+					throw new IOException("Checksum mismatch copying '" + from + "' to '" + to + "'");
+			}
+
+			// a move keeps the permissions of the moved file, not those of the file it replaces
+			AtomicWriter.copyPermissions(from, temp);
+			Files.setLastModifiedTime(temp, Files.getLastModifiedTime(from));
+			AtomicWriter.commit(temp, to);
+			AtomicWriter.forceDirectory(to.toAbsolutePath().getParent());
+			return bytes;
+		} catch(IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Computes the CRC32 of the file contents.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static long checksum(Path path) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (channel.read(buffer) != -1) {
+				crc.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		}
+
+		return crc.getValue();
+	}
+}
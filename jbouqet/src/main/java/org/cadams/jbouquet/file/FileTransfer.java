@@ -0,0 +1,252 @@
+package org.cadams.jbouquet.file;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Channel based copy engine used by {@link File}.
+ *
+ * <p>
+ * When the source is a {@code FileChannel} and the target is a file or a blocking
+ * socket the bytes are moved with {@code FileChannel.transferTo}, which lets the
+ * kernel perform the copy (sendfile on Linux) without bringing the data onto the heap.
+ * A stream copied into a file is read with {@code FileChannel.transferFrom}. Every other
+ * combination of channels falls back to a copy loop over a pooled direct buffer, and
+ * other streams are copied through a heap array as {@code IOUtils.copy} does.
+ * </p>
+ * <p>
+ * At most {@link #MAX_DIRECT_BUFFERS} direct buffers exist at once; copies beyond that
+ * use heap buffers, so concurrent copies cannot exhaust direct memory.
+ * </p>
+ * <p>
+ * All copy methods return the number of bytes copied.
+ * </p>
+ *
+ * @author cta
+ */
+public final class FileTransfer {
+	/**
+	 * Size of the direct buffers used when a zero-copy transfer is not possible.
+	 */
+	public static final int BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Maximum number of direct buffers allocated at once, pooled or in use.
+	 */
+	public static final int MAX_DIRECT_BUFFERS = 64;
+
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	/**
+	 * Some platforms cap a single transferTo call (2GB on Linux), so large files
+	 * are transferred in chunks.
+	 */
+	private static final long MAX_TRANSFER_SIZE = 64L * 1024 * 1024;
+
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	private static final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger directBuffers = new AtomicInteger();
+
+	private FileTransfer() {
+	}
+
+	/**
+	 * Copies the source file to the destination file, creating the parent directories
+	 * of the destination if required.
+	 *
+	 * @param source
+	 * @param destination
+	 * @param preserveFileDate
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	public static long copy(java.io.File source, java.io.File destination, boolean preserveFileDate) throws IOException {
+		if (!source.exists())
+			throw new IOException("Source '" + source + "' does not exist");
+		if (source.isDirectory())
+			throw new IOException("Source '" + source + "' exists but is a directory");
+		if (source.getCanonicalPath().equals(destination.getCanonicalPath()))
+			throw new IOException("Source '" + source + "' and destination '" + destination + "' are the same");
+
+		java.io.File parent = destination.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Destination '" + parent + "' directory cannot be created");
+
+		FileInputStream is = null;
+		FileOutputStream os = null;
+		long count;
+		try {
+			is = new FileInputStream(source);
+			os = new FileOutputStream(destination);
+			count = transfer(is.getChannel(), os.getChannel());
+		} finally {
+			IOUtils.closeQuietly(is);
+			IOUtils.closeQuietly(os);
+		}
+
+		if (source.length() != destination.length())
+			throw new IOException("Failed to copy full contents from '" + source + "' to '" + destination + "'");
+
+		if (preserveFileDate)
+			destination.setLastModified(source.lastModified());
+
+		return count;
+	}
+
+	/**
+	 * Copies the input stream to the output stream. Neither stream is closed.
+	 *
+	 * @param is
+	 * @param os
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	public static long copy(InputStream is, OutputStream os) throws IOException {
+		if (os instanceof FileOutputStream) {
+			FileChannel target = ((FileOutputStream)os).getChannel();
+			if (is instanceof FileInputStream)
+				return transfer(((FileInputStream)is).getChannel(), target);
+
+			return transferFrom(Channels.newChannel(is), target);
+		}
+
+		// a channel over a plain stream would copy every chunk once more
+		byte [] buffer = new byte[IO_BUFFER_SIZE];
+		long count = 0;
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			os.write(buffer, 0, read);
+			count += read;
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the source into the file at its current position until the source is exhausted.
+	 */
+	private static long transferFrom(ReadableByteChannel source, FileChannel target) throws IOException {
+		long position = target.position();
+		long count = 0;
+		for (;;) {
+			// a blocking source only comes up short at its end
+			long transferred = target.transferFrom(source, position + count, MAX_TRANSFER_SIZE);
+			count += transferred;
+			if (transferred < MAX_TRANSFER_SIZE)
+				break;
+		}
+
+		target.position(position + count);
+		return count;
+	}
+
+	/**
+	 * Transfers everything remaining in the source channel to the target channel.
+	 * Neither channel is closed.
+	 *
+	 * @param source
+	 * @param target
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	public static long transfer(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+		// pipes and files such as those in /proc report a size of 0, only the copy loop reads them fully
+		if (source instanceof FileChannel && supportsDirectTransfer(target) && ((FileChannel)source).size() > 0) {
+			return transferTo((FileChannel)source, target);
+		}
+
+		return transferBuffered(source, target);
+	}
+
+	private static boolean supportsDirectTransfer(WritableByteChannel target) {
+		if (target instanceof FileChannel)
+			return true;
+
+		// The JDK only hands sockets to sendfile, and only if they block.
+		return (target instanceof SelectableChannel) && ((SelectableChannel)target).isBlocking();
+	}
+
+	private static long transferTo(FileChannel source, WritableByteChannel target) throws IOException {
+		long position = source.position();
+		long size = source.size();
+		long count = 0;
+
+		while (position < size) {
+			long transferred = source.transferTo(position, Math.min(size - position, MAX_TRANSFER_SIZE), target);
+			if (transferred <= 0) {
+				// the platform stopped short of the reported size; read the rest with the copy loop
+				source.position(position);
+				return count + transferBuffered(source, target);
+			}
+
+			position += transferred;
+			count += transferred;
+		}
+
+		source.position(position);
+		return count;
+	}
+
+	private static long transferBuffered(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			long count = 0;
+			while (source.read(buffer) != -1) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					count += target.write(buffer);
+				}
+				buffer.clear();
+			}
+
+			return count;
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Borrows a cleared buffer of {@link #BUFFER_SIZE} bytes from the pool. It is direct
+	 * unless {@link #MAX_DIRECT_BUFFERS} are already allocated. Callers must hand it back
+	 * with {@link #releaseBuffer(ByteBuffer)}.
+	 */
+	static ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer != null)
+			return buffer;
+
+		if (directBuffers.incrementAndGet() <= MAX_DIRECT_BUFFERS)
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		directBuffers.decrementAndGet();
+		return ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	static void releaseBuffer(ByteBuffer buffer) {
+		if (!buffer.isDirect())
+			return;
+
+		buffer.clear();
+		// the size check is racy, so the bound on pooled buffers is approximate
+		if (buffers.size() < MAX_POOLED_BUFFERS) {
+			buffers.offer(buffer);
+		} else {
+			directBuffers.decrementAndGet();
+			MappedFile.unmap(buffer);
+		}
+	}
+}
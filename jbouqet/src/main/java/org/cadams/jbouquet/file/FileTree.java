@@ -0,0 +1,338 @@
+package org.cadams.jbouquet.file;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel recursive delete, copy and move of directory trees.
+ *
+ * <p>
+ * Each directory is listed by its own fork-join task; sub-directories are forked as new
+ * tasks and the files of a directory are processed in batches, so both deep and very
+ * wide trees are spread across the workers by work-stealing. Concurrency is bounded by
+ * the parallelism of the operation's pool.
+ * </p>
+ * <p>
+ * Unlike {@code FileUtils} the operations do not stop on the first error. Every failed
+ * entry is recorded in the returned {@link FileTreeResult} and reported to the listener
+ * while the rest of the tree is processed. A directory whose contents could not all be
+ * deleted is itself reported as failed.
+ * </p>
+ * <p>
+ * Symbolic links are never followed; the link itself is deleted or copied.
+ * </p>
+ *
+ * @author cta
+ */
+public class FileTree {
+	/**
+	 * Number of files of a single directory processed by one task.
+	 */
+	private static final int FILE_BATCH_SIZE = 256;
+
+	private final int parallelism;
+	private FileTreeListener listener;
+
+	/**
+	 * Creates a tree operator using one worker per processor.
+	 */
+	public FileTree() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a tree operator using at most the specified number of concurrent workers.
+	 *
+	 * @param parallelism
+	 */
+	public FileTree(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("The parallelism must be at least 1");
+
+		this.parallelism = parallelism;
+	}
+
+	public void setListener(FileTreeListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Deletes the directory and everything below it.
+	 *
+	 * @param directory
+	 * @return
+	 */
+	public FileTreeResult delete(java.io.File directory) {
+		FileTreeResult result = new FileTreeResult(listener);
+		Path root = directory.toPath();
+		if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS))
+			return result;
+
+		run(new DeleteTask(root, result), result);
+		return result;
+	}
+
+	/**
+	 * Copies the source directory so that {@code destination} becomes a copy of it,
+	 * creating any missing directories.
+	 *
+	 * @param source
+	 * @param destination
+	 * @return
+	 */
+	public FileTreeResult copy(java.io.File source, java.io.File destination) {
+		FileTreeResult result = new FileTreeResult(listener);
+		Path root = source.toPath();
+		if (!Files.isDirectory(root)) {
+			result.failed(source, new IOException("Source '" + source + "' is not a directory"));
+			return result;
+		}
+		try {
+			if (isWithin(destination.toPath(), root)) {
+				// the copy would be listed again as it is created, without end
+				result.failed(destination, new IOException("Destination '" + destination + "' is inside the source '" + source + "'"));
+				return result;
+			}
+		} catch(IOException e) {
+			result.failed(source, e);
+			return result;
+		}
+
+		run(new CopyTask(root, destination.toPath(), result), result);
+		return result;
+	}
+
+	/**
+	 * Moves the source directory to {@code destination}.
+	 * <p>
+	 * A rename is attempted first. When the destination is on another file system the tree
+	 * is copied and the source is deleted only if every entry was copied successfully.
+	 *
+	 * @param source
+	 * @param destination
+	 * @return
+	 */
+	public FileTreeResult move(java.io.File source, java.io.File destination) {
+		long start = System.currentTimeMillis();
+		try {
+			Files.move(source.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			FileTreeResult result = new FileTreeResult(listener);
+			result.processed(destination, 0);
+			result.setElapsedMillis(System.currentTimeMillis() - start);
+			return result;
+		} catch(AtomicMoveNotSupportedException e) {
+			// Different file system, fall through to copy and delete
+		} catch(IOException e) {
+			FileTreeResult result = new FileTreeResult(listener);
+			result.failed(source, e);
+			return result;
+		}
+
+		FileTreeResult result = copy(source, destination);
+		if (result.isSuccessful()) {
+			FileTreeResult deleted = new FileTreeResult(null);
+			run(new DeleteTask(source.toPath(), deleted), deleted);
+			for (Map.Entry<java.io.File, Exception> error : deleted.getErrors().entrySet()) {
+				result.failed(error.getKey(), error.getValue());
+			}
+		}
+
+		result.setElapsedMillis(System.currentTimeMillis() - start);
+		return result;
+	}
+
+	/**
+	 * Returns true if the path is the directory or below it, once symbolic links are resolved.
+	 * The path need not exist yet; its nearest existing ancestor is resolved.
+	 */
+	static boolean isWithin(Path path, Path directory) throws IOException {
+		Path root = directory.toRealPath();
+		Path existing = path.toAbsolutePath().normalize();
+		Path remainder = existing.getFileSystem().getPath("");
+		while (existing != null && !Files.exists(existing)) {
+			remainder = existing.getFileName().resolve(remainder);
+			existing = existing.getParent();
+		}
+		if (existing == null)
+			return false;
+
+		return existing.toRealPath().resolve(remainder).normalize().startsWith(root);
+	}
+
+	private void run(ForkJoinTask<?> task, FileTreeResult result) {
+		long start = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(task);
+		} finally {
+			pool.shutdown();
+		}
+		result.setElapsedMillis(System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Lists a directory, forking a task per sub-directory and per batch of files.
+	 *
+	 * @return false if the directory could not be listed
+	 */
+	private static boolean forkChildren(Path directory, FileTreeResult result, ChildTaskFactory factory) {
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		List<Path> files = new ArrayList<Path>(FILE_BATCH_SIZE);
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					tasks.add(factory.directory(entry));
+				} else {
+					files.add(entry);
+					if (files.size() == FILE_BATCH_SIZE) {
+						tasks.add(factory.files(files));
+						files = new ArrayList<Path>(FILE_BATCH_SIZE);
+					}
+				}
+			}
+		} catch(IOException | RuntimeException e) {
+			result.failed(directory.toFile(), e);
+			return false;
+		} finally {
+			if (!files.isEmpty())
+				tasks.add(factory.files(files));
+			ForkJoinTask.invokeAll(tasks);
+		}
+
+		return true;
+	}
+
+	private interface ChildTaskFactory {
+		ForkJoinTask<?> directory(Path directory);
+		ForkJoinTask<?> files(List<Path> files);
+	}
+
+	private static class DeleteTask extends RecursiveAction implements ChildTaskFactory {
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		private final FileTreeResult result;
+
+		DeleteTask(Path directory, FileTreeResult result) {
+			this.directory = directory;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+				deleteEntry(directory, result);
+				return;
+			}
+
+			forkChildren(directory, result, this);
+			deleteEntry(directory, result);
+		}
+
+		public ForkJoinTask<?> directory(Path directory) {
+			return new DeleteTask(directory, result);
+		}
+
+		public ForkJoinTask<?> files(final List<Path> files) {
+			return new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					for (Path file : files) {
+						deleteEntry(file, result);
+					}
+				}
+			};
+		}
+
+		private static void deleteEntry(Path path, FileTreeResult result) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				Files.delete(path);
+				result.processed(path.toFile(), attributes.isRegularFile() ? attributes.size() : 0);
+			} catch(IOException | RuntimeException e) {
+				result.failed(path.toFile(), e);
+			}
+		}
+	}
+
+	private static class CopyTask extends RecursiveAction implements ChildTaskFactory {
+		private static final long serialVersionUID = 1L;
+
+		private final Path source;
+		private final Path destination;
+		private final FileTreeResult result;
+
+		CopyTask(Path source, Path destination, FileTreeResult result) {
+			this.source = source;
+			this.destination = destination;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				Files.createDirectories(destination);
+			} catch(IOException | RuntimeException e) {
+				result.failed(source.toFile(), e);
+				return;
+			}
+
+			if (forkChildren(source, result, this)) {
+				try {
+					FileTime modified = Files.getLastModifiedTime(source);
+					Files.setLastModifiedTime(destination, modified);
+					result.processed(destination.toFile(), 0);
+				} catch(IOException | RuntimeException e) {
+					result.failed(source.toFile(), e);
+				}
+			}
+		}
+
+		public ForkJoinTask<?> directory(Path directory) {
+			return new CopyTask(directory, destination.resolve(directory.getFileName()), result);
+		}
+
+		public ForkJoinTask<?> files(final List<Path> files) {
+			return new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					for (Path file : files) {
+						copyEntry(file, destination.resolve(file.getFileName()));
+					}
+				}
+			};
+		}
+
+		private void copyEntry(Path file, Path target) {
+			try {
+				long size = 0;
+				if (Files.isSymbolicLink(file)) {
+					Files.copy(file, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+				} else {
+					size = FileTransfer.copy(file.toFile(), target.toFile(), true);
+				}
+				result.processed(target.toFile(), size);
+			} catch(IOException | RuntimeException e) {
+				result.failed(file.toFile(), e);
+			}
+		}
+	}
+}
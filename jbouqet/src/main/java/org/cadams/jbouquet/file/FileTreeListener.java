@@ -0,0 +1,30 @@
+package org.cadams.jbouquet.file;
+
+/**
+ * Receives progress notifications from a {@link FileTree} operation.
+ *
+ * <p>
+ * Notifications are delivered from the worker threads, so implementations must be
+ * thread-safe and should return quickly.
+ * </p>
+ *
+ * @author cta
+ */
+public interface FileTreeListener {
+	/**
+	 * Called after an entry has been processed successfully.
+	 *
+	 * @param file the entry that was deleted, copied or moved
+	 * @param processed the number of entries processed so far
+	 */
+	void entryProcessed(java.io.File file, long processed);
+
+	/**
+	 * Called when an entry could not be processed. The operation carries on with the
+	 * remaining entries.
+	 *
+	 * @param file
+	 * @param error
+	 */
+	void entryFailed(java.io.File file, Exception error);
+}
@@ -0,0 +1,100 @@
+package org.cadams.jbouquet.file;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The outcome of a {@link FileTree} operation: how many entries and bytes were processed
+ * and every entry that failed along with its error.
+ *
+ * @author cta
+ */
+public class FileTreeResult {
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final Queue<Failure> failures = new ConcurrentLinkedQueue<Failure>();
+	private final FileTreeListener listener;
+	private volatile long elapsedMillis;
+
+	FileTreeResult(FileTreeListener listener) {
+		this.listener = listener;
+	}
+
+	void processed(java.io.File file, long size) {
+		long count = processed.incrementAndGet();
+		bytes.addAndGet(size);
+		if (listener != null)
+			listener.entryProcessed(file, count);
+	}
+
+	void failed(java.io.File file, Exception error) {
+		failures.add(new Failure(file, error));
+		if (listener != null)
+			listener.entryFailed(file, error);
+	}
+
+	void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Returns the number of entries processed successfully.
+	 */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * Returns the number of file bytes copied, or deleted for a delete operation.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public boolean isSuccessful() {
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Returns every entry which failed, in the order the failures occurred.
+	 */
+	public Map<java.io.File, Exception> getErrors() {
+		Map<java.io.File, Exception> errors = new LinkedHashMap<java.io.File, Exception>();
+		for (Failure failure : failures) {
+			errors.put(failure.file, failure.error);
+		}
+		return Collections.unmodifiableMap(errors);
+	}
+
+	/**
+	 * Throws a {@link FileException} describing the failures, if any.
+	 */
+	public void throwIfFailed() {
+		Failure first = failures.peek();
+		if (first != null)
+			throw new FileException(failures.size() + " entries failed, first failure on " + first.file, first.error);
+	}
+
+	@Override
+	public String toString() {
+		return "FileTreeResult [processed=" + processed + ", bytes=" + bytes + ", errors=" + failures.size() + ", elapsedMillis=" + elapsedMillis + "]";
+	}
+
+	private static class Failure {
+		private final java.io.File file;
+		private final Exception error;
+
+		Failure(java.io.File file, Exception error) {
+			this.file = file;
+			this.error = error;
+		}
+	}
+}
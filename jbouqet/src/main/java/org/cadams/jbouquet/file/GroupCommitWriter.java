@@ -0,0 +1,319 @@
+package org.cadams.jbouquet.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Durable atomic writer which commits the writes of many threads together.
+ *
+ * <p>
+ * Writing thousands of small files per second with {@code File.write(data, true)} is
+ * capped by the latency of one fsync per file. This writer queues the requests and a
+ * single committer thread processes whatever accumulated while the previous batch was
+ * being committed:
+ * </p>
+ * <ol>
+ * 	<li>every file is written to a temporary sibling, see {@link AtomicWriter}</li>
+ * 	<li>the temporary files are forced concurrently, which lets the file system journal
+ * 	    fold them into a single commit</li>
+ * 	<li>the temporary files are renamed over their targets</li>
+ * 	<li>each directory touched by the batch is forced once</li>
+ * </ol>
+ * <p>
+ * The future returned for a write completes once its data and rename are durable.
+ * </p>
+ *
+ * @author cta
+ */
+public class GroupCommitWriter implements Closeable {
+	private static final Logger logger = Logger.getLogger(GroupCommitWriter.class.getName());
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 512;
+	public static final int DEFAULT_SYNC_THREADS = 8;
+
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	/**
+	 * Queued by {@link #close()} behind the last write; the committer stops when it takes it.
+	 */
+	private static final Request SHUTDOWN = new Request(null, null);
+
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	private final int maxBatchSize;
+	private final long maxDelayMillis;
+	private final ExecutorService syncPool;
+	private final Thread committer;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a writer which commits everything queued since the previous batch, up to
+	 * {@link #DEFAULT_MAX_BATCH_SIZE} writes at a time.
+	 */
+	public GroupCommitWriter() {
+		this(DEFAULT_MAX_BATCH_SIZE, 0, DEFAULT_SYNC_THREADS);
+	}
+
+	/**
+	 * @param maxBatchSize maximum number of writes committed together
+	 * @param maxDelayMillis how long the committer waits for more writes before starting a
+	 *        batch; 0 commits whatever is queued right away
+	 * @param syncThreads number of threads issuing the fsyncs of a batch concurrently
+	 */
+	public GroupCommitWriter(int maxBatchSize, long maxDelayMillis, int syncThreads) {
+		if (maxBatchSize < 1 || syncThreads < 1 || maxDelayMillis < 0)
+			throw new IllegalArgumentException("Invalid group commit settings");
+
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayMillis = maxDelayMillis;
+
+		final int id = instances.incrementAndGet();
+		this.syncPool = Executors.newFixedThreadPool(syncThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "group-commit-" + id + "-sync-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.committer = new Thread(new Runnable() {
+			public void run() {
+				commitLoop();
+			}
+		}, "group-commit-" + id);
+		this.committer.setDaemon(true);
+		this.committer.start();
+	}
+
+	/**
+	 * Queues an atomic, durable write of the data to the target.
+	 *
+	 * @param target
+	 * @param data
+	 * @return a future holding the written file once it is durable
+	 */
+	public Promise<File> write(java.io.File target, byte[] data) {
+		Request request = new Request(new File(target), data);
+		synchronized (queue) {
+			if (closed)
+				throw new IllegalStateException("The writer has been closed");
+			queue.add(request);
+		}
+		return request.promise;
+	}
+
+	/**
+	 * Queues an atomic, durable write of the text to the target using the platform default charset.
+	 *
+	 * @param target
+	 * @param text
+	 * @return a future holding the written file once it is durable
+	 */
+	public Promise<File> writeString(java.io.File target, String text) {
+		return write(target, text.getBytes());
+	}
+
+	/**
+	 * Stops accepting writes, commits everything already queued and stops the committer.
+	 */
+	public void close() {
+		synchronized (queue) {
+			if (closed)
+				return;
+			closed = true;
+			queue.add(SHUTDOWN);
+		}
+
+		// the committer is not interrupted, that would fail the writes of the batch in progress
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				committer.join();
+				break;
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		syncPool.shutdown();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void commitLoop() {
+		List<Request> batch = new ArrayList<Request>(maxBatchSize);
+		boolean stopping = false;
+		while (!stopping) {
+			try {
+				batch.add(queue.take());
+				if (maxDelayMillis > 0 && !closed) {
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+					while (batch.size() < maxBatchSize) {
+						Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (next == null)
+							break;
+						batch.add(next);
+						if (next == SHUTDOWN)
+							break;
+					}
+				}
+				queue.drainTo(batch, maxBatchSize - batch.size());
+			} catch(InterruptedException e) {
+				// nothing interrupts the committer on purpose; commit what was taken
+			}
+
+			// nothing is queued behind the shutdown marker
+			stopping = batch.remove(SHUTDOWN);
+			if (!batch.isEmpty()) {
+				try {
+					commit(batch);
+				} catch(Throwable t) {
+					// the committer must outlive any one batch, or every later write would hang
+					logger.error("Could not commit a batch of " + batch.size() + " writes", t);
+					abort(batch, t);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private void commit(List<Request> batch) {
+		List<Request> written = new ArrayList<Request>(batch.size());
+		for (Request request : batch) {
+			try {
+				request.path = AtomicWriter.resolveTarget(request.target.toPath());
+				request.temp = AtomicWriter.writeTemp(request.path, request.data, false);
+				written.add(request);
+			} catch(Throwable t) {
+				request.promise.fail(t);
+			}
+		}
+
+		List<Future<?>> syncs = new ArrayList<Future<?>>(written.size());
+		for (final Request request : written) {
+			syncs.add(syncPool.submit(new Runnable() {
+				public void run() {
+					try (FileChannel channel = FileChannel.open(request.temp, StandardOpenOption.WRITE)) {
+						channel.force(true);
+					} catch(IOException e) {
+						request.failure = e;
+					}
+				}
+			}));
+		}
+		awaitAll(syncs);
+
+		Map<Path, List<Request>> directories = new LinkedHashMap<Path, List<Request>>();
+		int committed = 0;
+		for (Request request : written) {
+			try {
+				if (request.failure != null) {
+					Files.deleteIfExists(request.temp);
+					request.promise.fail(request.failure);
+					continue;
+				}
+
+				AtomicWriter.commit(request.temp, request.path);
+				Path directory = request.path.toAbsolutePath().getParent();
+				List<Request> requests = directories.get(directory);
+				if (requests == null) {
+					requests = new ArrayList<Request>();
+					directories.put(directory, requests);
+				}
+				requests.add(request);
+				committed++;
+			} catch(Throwable t) {
+				request.promise.fail(t);
+			}
+		}
+
+		// the renames are only durable once their directory is; otherwise the writes fail
+		for (Map.Entry<Path, List<Request>> entry : directories.entrySet()) {
+			IOException failure = null;
+			try {
+				AtomicWriter.forceDirectory(entry.getKey());
+			} catch(IOException e) {
+				failure = e;
+			}
+
+			for (Request request : entry.getValue()) {
+				if (failure == null) {
+					request.promise.complete(request.target);
+				} else {
+					request.promise.fail(failure);
+				}
+			}
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Committed " + committed + " of " + batch.size() + " writes across " + directories.size() + " directories");
+		}
+	}
+
+	/**
+	 * Fails the writes of the batch which are not complete yet, dropping their temporary files.
+	 */
+	private static void abort(List<Request> batch, Throwable failure) {
+		for (Request request : batch) {
+			if (request.promise.isDone())
+				continue;
+
+			try {
+				if (request.temp != null)
+					Files.deleteIfExists(request.temp);
+			} catch(IOException ignore) {}
+			request.promise.fail(failure);
+		}
+	}
+
+	private void awaitAll(List<Future<?>> futures) {
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			for (;;) {
+				try {
+					future.get();
+					break;
+				} catch(InterruptedException e) {
+					interrupted = true;
+				} catch(Exception ignore) {
+					break;
+				}
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private static class Request {
+		private final File target;
+		private final byte[] data;
+		private final Promise<File> promise = new Promise<File>();
+		private Path path;
+		private Path temp;
+		private volatile IOException failure;
+
+		Request(File target, byte[] data) {
+			this.target = target;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package org.cadams.jbouquet.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A memory-mapped, off-heap view of a file.
+ *
+ * <p>
+ * A single {@code MappedByteBuffer} is limited to 2GB, so the file is mapped as a
+ * sequence of segments of at most {@link #SEGMENT_SIZE} bytes and addressed with
+ * {@code long} positions. Absolute reads do not touch any buffer state and are safe
+ * to call from multiple threads.
+ * </p>
+ * <p>
+ * Mappings are normally released only when the buffers are garbage collected, which
+ * can keep large files pinned (and undeletable on Windows) long after use. Calling
+ * {@link #close()} unmaps the segments immediately: it waits for reads and writes in
+ * progress, and later ones fail with an {@code IllegalStateException} rather than touch
+ * unmapped memory. Buffers handed out by {@link #getSegment(int)} cannot be tracked, so
+ * once one has been handed out the mapping is left for the garbage collector instead.
+ * </p>
+ *
+ * @author cta
+ */
+public final class MappedFile implements Closeable {
+	/**
+	 * Maximum size of a single mapped segment.
+	 */
+	public static final long SEGMENT_SIZE = 1L << 30;
+
+	/**
+	 * Maps the whole file with the specified mode.
+	 *
+	 * @param file
+	 * @param mode {@code READ_ONLY}, {@code READ_WRITE} or {@code PRIVATE}
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedFile map(java.io.File file, MapMode mode) throws IOException {
+		// a private mapping is writable, copy-on-write, so it needs a writable channel
+		RandomAccessFile raf = new RandomAccessFile(file, mode == MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			int count = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+
+			MappedByteBuffer[] segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long position = i * SEGMENT_SIZE;
+				segments[i] = channel.map(mode, position, Math.min(SEGMENT_SIZE, size - position));
+			}
+
+			// The mappings stay valid once the channel is closed
+			return new MappedFile(segments, size, mode);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private final MappedByteBuffer[] segments;
+	private final long size;
+	private final MapMode mode;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile boolean closed = false;
+	private volatile boolean exported = false;
+
+	private MappedFile(MappedByteBuffer[] segments, long size, MapMode mode) {
+		this.segments = segments;
+		this.size = size;
+		this.mode = mode;
+	}
+
+	/**
+	 * Returns the number of bytes mapped.
+	 */
+	public long size() {
+		return size;
+	}
+
+	public MapMode getMode() {
+		return mode;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * Returns an independent view of the specified segment. The returned buffer has its
+	 * own position and limit, so it can be scanned sequentially without affecting others.
+	 * It stays usable after {@link #close()}, which therefore no longer unmaps the file.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public ByteBuffer getSegment(int index) {
+		Lock read = acquire();
+		try {
+			exported = true;
+			return segments[index].duplicate();
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Reads the byte at the specified position.
+	 *
+	 * @param position
+	 * @return
+	 */
+	public byte get(long position) {
+		checkPosition(position, 1);
+		Lock read = acquire();
+		try {
+			return segments[(int)(position / SEGMENT_SIZE)].get((int)(position % SEGMENT_SIZE));
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Copies {@code length} bytes starting at {@code position} into the destination array.
+	 *
+	 * @param position
+	 * @param dst
+	 * @param offset
+	 * @param length
+	 */
+	public void get(long position, byte[] dst, int offset, int length) {
+		checkPosition(position, length);
+		Lock read = acquire();
+		try {
+			while (length > 0) {
+				ByteBuffer segment = segments[(int)(position / SEGMENT_SIZE)].duplicate();
+				segment.position((int)(position % SEGMENT_SIZE));
+				int count = Math.min(length, segment.remaining());
+				segment.get(dst, offset, count);
+
+				position += count;
+				offset += count;
+				length -= count;
+			}
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Writes the byte at the specified position. Requires a writable mapping.
+	 *
+	 * @param position
+	 * @param value
+	 */
+	public void put(long position, byte value) {
+		checkPosition(position, 1);
+		Lock read = acquire();
+		try {
+			segments[(int)(position / SEGMENT_SIZE)].put((int)(position % SEGMENT_SIZE), value);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Writes {@code length} bytes from the source array starting at {@code position}.
+	 * Requires a writable mapping.
+	 *
+	 * @param position
+	 * @param src
+	 * @param offset
+	 * @param length
+	 */
+	public void put(long position, byte[] src, int offset, int length) {
+		checkPosition(position, length);
+		Lock read = acquire();
+		try {
+			while (length > 0) {
+				ByteBuffer segment = segments[(int)(position / SEGMENT_SIZE)].duplicate();
+				segment.position((int)(position % SEGMENT_SIZE));
+				int count = Math.min(length, segment.remaining());
+				segment.put(src, offset, count);
+
+				position += count;
+				offset += count;
+				length -= count;
+			}
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Hints the operating system to load the mapped contents into physical memory.
+	 */
+	public void load() {
+		Lock read = acquire();
+		try {
+			for (MappedByteBuffer segment : segments) {
+				segment.load();
+			}
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Forces any changes made to a {@code READ_WRITE} mapping to the storage device.
+	 */
+	public void force() {
+		Lock read = acquire();
+		try {
+			if (mode == MapMode.READ_WRITE) {
+				for (MappedByteBuffer segment : segments) {
+					segment.force();
+				}
+			}
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Unmaps every segment once the reads and writes in progress are done. Changes made
+	 * through a {@code READ_WRITE} mapping are written back by the operating system but are
+	 * not forced; call {@link #force()} first if they must be durable.
+	 */
+	public void close() {
+		Lock write = lock.writeLock();
+		write.lock();
+		try {
+			if (closed)
+				return;
+
+			closed = true;
+			for (int i = 0; i < segments.length; i++) {
+				if (!exported)
+					unmap(segments[i]);
+				segments[i] = null;
+			}
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Takes the read lock, which keeps the segments mapped until it is released.
+	 */
+	private Lock acquire() {
+		Lock read = lock.readLock();
+		read.lock();
+		if (closed) {
+			read.unlock();
+			throw new IllegalStateException("The mapped file has been closed");
+		}
+		return read;
+	}
+
+	private void checkPosition(long position, int length) {
+		if (position < 0 || length < 0 || position + length > size)
+			throw new IndexOutOfBoundsException("Range [" + position + ", " + (position + length) + ") is outside of the mapped size " + size);
+	}
+
+	/**
+	 * Releases the mapping behind the specified buffer without waiting for garbage collection.
+	 * <p>
+	 * There is no public API for this, so it uses {@code Unsafe.invokeCleaner} where
+	 * available and the buffer's cleaner on older JVMs. If neither is accessible the
+	 * mapping is left for the garbage collector.
+	 *
+	 * @param buffer
+	 * @return true if the buffer was unmapped.
+	 */
+	static boolean unmap(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect())
+			return false;
+
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buffer);
+				return true;
+			} catch(NoSuchMethodException ignore) {}
+
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+				return true;
+			}
+		} catch(Exception ignore) {}
+
+		return false;
+	}
+}
@@ -0,0 +1,69 @@
+package org.cadams.jbouquet.file;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how a {@link FileMover} move was carried out.
+ *
+ * @author cta
+ */
+public class MoveResult {
+	/**
+	 * The way a file was moved.
+	 */
+	public enum Strategy {
+		/**
+		 * The file was renamed in place; no data was copied.
+		 */
+		RENAME,
+
+		/**
+		 * The destination is on another file system, so the data was copied and the
+		 * source deleted.
+		 */
+		COPY_AND_DELETE
+	}
+
+	private final File file;
+	private final Strategy strategy;
+	private final long bytesCopied;
+	private final long elapsedNanos;
+
+	MoveResult(File file, Strategy strategy, long bytesCopied, long elapsedNanos) {
+		this.file = file;
+		this.strategy = strategy;
+		this.bytesCopied = bytesCopied;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * Returns the moved file. Use this reference from now on.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Returns the number of bytes copied, always 0 for a rename.
+	 */
+	public long getBytesCopied() {
+		return bytesCopied;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+	}
+
+	@Override
+	public String toString() {
+		return "MoveResult [file=" + file + ", strategy=" + strategy + ", bytesCopied=" + bytesCopied + ", elapsedMillis=" + getElapsedMillis() + "]";
+	}
+}
@@ -0,0 +1,220 @@
+package org.cadams.jbouquet.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Splits a file into byte ranges aligned to record boundaries and processes the
+ * ranges concurrently on a {@code ForkJoinPool}.
+ *
+ * <p>
+ * Boundaries are found by scanning for the encoded delimiter bytes, which is only
+ * safe for charsets in which those bytes can not appear inside another character.
+ * UTF-8 and single byte charsets qualify; UTF-16 and similar charsets are rejected.
+ * </p>
+ *
+ * @author cta
+ */
+public final class ParallelRecords {
+	/**
+	 * Files are never split into chunks smaller than this.
+	 */
+	public static final long MIN_CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * Number of chunks created per worker thread so that uneven chunks can be balanced
+	 * by work-stealing.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static final int SCAN_BUFFER_SIZE = 8192;
+
+	private static ForkJoinPool defaultPool;
+
+	private ParallelRecords() {
+	}
+
+	/**
+	 * Returns the shared pool used when no pool is specified, sized to the number of processors.
+	 */
+	public static synchronized ForkJoinPool getDefaultPool() {
+		if (defaultPool == null)
+			defaultPool = new ForkJoinPool();
+
+		return defaultPool;
+	}
+
+	/**
+	 * Processes the lines of the file concurrently.
+	 *
+	 * @param file
+	 * @param charset
+	 * @param processor
+	 * @param pool the pool to run on, or null for the default pool
+	 * @return the combined result of every chunk, or null for an empty file
+	 * @throws IOException
+	 */
+	public static <R> R processLines(java.io.File file, Charset charset, RecordProcessor<R> processor, ForkJoinPool pool) throws IOException {
+		return process(file, null, charset, processor, pool);
+	}
+
+	/**
+	 * Processes the records of the file, split on the specified delimiter, concurrently.
+	 *
+	 * @param file
+	 * @param delimiter
+	 * @param charset
+	 * @param processor
+	 * @param pool the pool to run on, or null for the default pool
+	 * @return the combined result of every chunk, or null for an empty file
+	 * @throws IOException
+	 */
+	public static <R> R processRecords(java.io.File file, String delimiter, Charset charset, RecordProcessor<R> processor, ForkJoinPool pool) throws IOException {
+		if (delimiter == null || delimiter.length() == 0)
+			throw new IllegalArgumentException("The record delimiter must not be empty");
+
+		return process(file, delimiter, charset, processor, pool);
+	}
+
+	/**
+	 * Splits the file into at most {@code parts} ranges, each ending right after a delimiter
+	 * or at the end of the file.
+	 *
+	 * @param channel
+	 * @param parts
+	 * @param delimiter the encoded delimiter
+	 * @return the range boundaries, starting with 0 and ending with the file size
+	 * @throws IOException
+	 */
+	public static long[] split(FileChannel channel, int parts, byte[] delimiter) throws IOException {
+		long size = channel.size();
+		parts = (int)Math.max(1, Math.min(parts, size / MIN_CHUNK_SIZE));
+
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(0L);
+
+		long previous = 0;
+		for (int i = 1; i < parts; i++) {
+			long target = Math.max(previous, size * i / parts);
+			long boundary = findBoundary(channel, target, size, delimiter);
+			if (boundary >= size)
+				break;
+			if (boundary > previous) {
+				boundaries.add(boundary);
+				previous = boundary;
+			}
+		}
+		boundaries.add(size);
+
+		long[] result = new long[boundaries.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+
+	private static <R> R process(java.io.File file, String delimiter, Charset charset, RecordProcessor<R> processor, ForkJoinPool pool) throws IOException {
+		byte[] encoded = encodeDelimiter(delimiter == null ? "\n" : delimiter, charset);
+		if (pool == null)
+			pool = getDefaultPool();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() == 0)
+				return null;
+
+			long[] boundaries = split(channel, pool.getParallelism() * CHUNKS_PER_THREAD, encoded);
+			return pool.invoke(new ChunkTask<R>(channel, boundaries, 0, boundaries.length - 1, delimiter, charset, processor));
+		}
+	}
+
+	private static byte[] encodeDelimiter(String delimiter, Charset charset) {
+		if (!"UTF-8".equals(charset.name()) && charset.newEncoder().maxBytesPerChar() != 1.0f)
+			throw new IllegalArgumentException("Files encoded as " + charset.name() + " can not be split on record boundaries");
+
+		return delimiter.getBytes(charset);
+	}
+
+	/**
+	 * Returns the position right after the first delimiter found at or after {@code from}.
+	 */
+	private static long findBoundary(FileChannel channel, long from, long size, byte[] delimiter) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(SCAN_BUFFER_SIZE, delimiter.length * 2));
+		long position = from;
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0)
+				break;
+
+			byte[] data = buffer.array();
+			for (int i = 0; i + delimiter.length <= read; i++) {
+				if (matches(data, i, delimiter))
+					return position + i + delimiter.length;
+			}
+
+			// Overlap the next read so a delimiter straddling two reads is still found
+			position += Math.max(1, read - delimiter.length + 1);
+		}
+
+		return size;
+	}
+
+	private static boolean matches(byte[] data, int offset, byte[] delimiter) {
+		for (int i = 0; i < delimiter.length; i++) {
+			if (data[offset + i] != delimiter[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static class ChunkTask<R> extends RecursiveTask<R> {
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long[] boundaries;
+		private final int from;
+		private final int to;
+		private final String delimiter;
+		private final Charset charset;
+		private final RecordProcessor<R> processor;
+
+		ChunkTask(FileChannel channel, long[] boundaries, int from, int to, String delimiter, Charset charset, RecordProcessor<R> processor) {
+			this.channel = channel;
+			this.boundaries = boundaries;
+			this.from = from;
+			this.to = to;
+			this.delimiter = delimiter;
+			this.charset = charset;
+			this.processor = processor;
+		}
+
+		@Override
+		protected R compute() {
+			if (to - from == 1) {
+				RangeChannel range = new RangeChannel(channel, boundaries[from], boundaries[to]);
+				RecordIterator records = (delimiter == null) ? new RecordIterator(range, charset) : new RecordIterator(range, charset, delimiter);
+				try {
+					return processor.process(records);
+				} finally {
+					records.close();
+				}
+			}
+
+			int middle = (from + to) >>> 1;
+			ChunkTask<R> left = new ChunkTask<R>(channel, boundaries, from, middle, delimiter, charset, processor);
+			ChunkTask<R> right = new ChunkTask<R>(channel, boundaries, middle, to, delimiter, charset, processor);
+			left.fork();
+			R rightResult = right.compute();
+			R leftResult = left.join();
+
+			return processor.combine(leftResult, rightResult);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package org.cadams.jbouquet.file;
+
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@code Future} that is completed explicitly by the component that produced it.
+ *
+ * <p>
+ * Besides blocking on {@link #get()}, callers running on an event loop can register a
+ * {@code CompletionHandler} which is invoked on the thread that completes the promise,
+ * or right away if it has already completed. A cancelled promise is reported to the
+ * handler as a failure with a {@code CancellationException}. A handler which throws is
+ * logged; it does not keep the other handlers from running, and the exception does not
+ * reach the thread which completed the promise.
+ * </p>
+ *
+ * @author cta
+ *
+ * @param <T>
+ */
+public class Promise<T> implements Future<T> {
+	private static final Logger logger = Logger.getLogger(Promise.class.getName());
+
+	/**
+	 * A promise completed by running a task, for queues of work which hand out promises.
+	 * Once cancelled, the task no longer runs.
+	 *
+	 * @param <T>
+	 */
+	public static class Task<T> extends Promise<T> implements RunnableFuture<T> {
+		private final Callable<? extends T> callable;
+
+		public Task(Callable<? extends T> callable) {
+			this.callable = callable;
+		}
+
+		public void run() {
+			if (isDone())
+				return;
+
+			try {
+				complete(callable.call());
+			} catch(Throwable t) {
+				fail(t);
+			}
+		}
+	}
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private T value;
+	private Throwable failure;
+	private boolean cancelled;
+	private List<Runnable> callbacks = new ArrayList<Runnable>(1);
+
+	/**
+	 * Completes the promise with the specified value.
+	 *
+	 * @return false if the promise was already completed
+	 */
+	boolean complete(T value) {
+		synchronized (this) {
+			if (isDone())
+				return false;
+			this.value = value;
+			done.countDown();
+		}
+		runCallbacks();
+		return true;
+	}
+
+	/**
+	 * Completes the promise with the specified failure.
+	 *
+	 * @return false if the promise was already completed
+	 */
+	boolean fail(Throwable failure) {
+		synchronized (this) {
+			if (isDone())
+				return false;
+			this.failure = failure;
+			done.countDown();
+		}
+		runCallbacks();
+		return true;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (isDone())
+				return false;
+			this.cancelled = true;
+			done.countDown();
+		}
+		runCallbacks();
+		return true;
+	}
+
+	/**
+	 * Registers a handler to be notified once the promise completes.
+	 *
+	 * @param attachment
+	 * @param handler
+	 */
+	public <A> void onComplete(final A attachment, final CompletionHandler<? super T, ? super A> handler) {
+		Runnable callback = new Runnable() {
+			public void run() {
+				T result;
+				try {
+					result = result();
+				} catch(ExecutionException e) {
+					handler.failed(e.getCause(), attachment);
+					return;
+				} catch(CancellationException e) {
+					handler.failed(e, attachment);
+					return;
+				}
+				handler.completed(result, attachment);
+			}
+		};
+
+		synchronized (this) {
+			if (!isDone()) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		run(callback);
+	}
+
+	private void runCallbacks() {
+		List<Runnable> pending;
+		synchronized (this) {
+			pending = callbacks;
+			callbacks = null;
+		}
+
+		for (Runnable callback : pending) {
+			run(callback);
+		}
+	}
+
+	private static void run(Runnable callback) {
+		try {
+			callback.run();
+		} catch(RuntimeException | Error e) {
+			logger.error("A promise completion handler failed", e);
+		}
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit))
+			throw new TimeoutException();
+		return result();
+	}
+
+	private synchronized T result() throws ExecutionException {
+		if (cancelled)
+			throw new CancellationException();
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return value;
+	}
+}
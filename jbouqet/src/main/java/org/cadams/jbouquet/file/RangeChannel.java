@@ -0,0 +1,56 @@
+package org.cadams.jbouquet.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the byte range [start, end) of a shared file channel using positional reads,
+ * so several ranges of the same file can be read concurrently. Closing the range does
+ * not close the underlying channel.
+ *
+ * @author cta
+ */
+class RangeChannel implements ReadableByteChannel {
+	private final FileChannel channel;
+	private final long end;
+	private long position;
+	private boolean open = true;
+
+	RangeChannel(FileChannel channel, long start, long end) {
+		this.channel = channel;
+		this.position = start;
+		this.end = end;
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		if (position >= end)
+			return -1;
+
+		int limit = dst.limit();
+		long remaining = end - position;
+		if (dst.remaining() > remaining)
+			dst.limit(dst.position() + (int)remaining);
+
+		try {
+			int read = channel.read(dst, position);
+			if (read > 0)
+				position += read;
+			return read;
+		} finally {
+			dst.limit(limit);
+		}
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public void close() {
+		open = false;
+	}
+}
@@ -0,0 +1,210 @@
+package org.cadams.jbouquet.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily reads delimited records (or lines) from a channel.
+ *
+ * <p>
+ * The bytes are decoded incrementally through a single pooled direct buffer and a
+ * reusable decoder, so memory use is bounded by the longest record rather than the
+ * size of the file. Malformed input is replaced the same way {@code new String(byte[])}
+ * does.
+ * </p>
+ * <p>
+ * In line mode records are split on {@code \n} and a trailing {@code \r} is removed.
+ * A delimiter at the very end of the input does not produce an empty record.
+ * </p>
+ * <p>
+ * The iterator can only be walked once. It closes the underlying channel when the
+ * end of the input is reached; call {@link #close()} when abandoning it earlier.
+ * </p>
+ *
+ * @author cta
+ */
+public class RecordIterator implements Iterator<String>, Iterable<String>, Closeable {
+	private static final String LINE_DELIMITER = "\n";
+	private static final int CHAR_BUFFER_SIZE = 8192;
+
+	private final ReadableByteChannel channel;
+	private final CharsetDecoder decoder;
+	private final String delimiter;
+	private final boolean lineMode;
+
+	private ByteBuffer bytes;
+	private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+	private final StringBuilder pending = new StringBuilder(CHAR_BUFFER_SIZE);
+	private int start = 0;
+	private int searchFrom = 0;
+
+	private boolean endOfInput = false;
+	private boolean closed = false;
+	private String next;
+
+	/**
+	 * Creates an iterator returning the lines of the channel.
+	 *
+	 * @param channel
+	 * @param charset
+	 */
+	public RecordIterator(ReadableByteChannel channel, Charset charset) {
+		this(channel, charset, LINE_DELIMITER, true);
+	}
+
+	/**
+	 * Creates an iterator returning the records of the channel split on the specified delimiter.
+	 *
+	 * @param channel
+	 * @param charset
+	 * @param delimiter
+	 */
+	public RecordIterator(ReadableByteChannel channel, Charset charset, String delimiter) {
+		this(channel, charset, delimiter, false);
+	}
+
+	private RecordIterator(ReadableByteChannel channel, Charset charset, String delimiter, boolean lineMode) {
+		if (delimiter == null || delimiter.length() == 0)
+			throw new IllegalArgumentException("The record delimiter must not be empty");
+
+		this.channel = channel;
+		this.delimiter = delimiter;
+		this.lineMode = lineMode;
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = FileTransfer.acquireBuffer();
+	}
+
+	public Iterator<String> iterator() {
+		return this;
+	}
+
+	public boolean hasNext() {
+		if (next == null && !closed) {
+			try {
+				next = readRecord();
+			} catch(IOException e) {
+				close();
+				throw new FileException(e);
+			}
+
+			if (next == null)
+				close();
+		}
+
+		return next != null;
+	}
+
+	public String next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		String result = next;
+		next = null;
+		return result;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Closes the underlying channel and releases the read buffer.
+	 */
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		FileTransfer.releaseBuffer(bytes);
+		bytes = null;
+		try {
+			channel.close();
+		} catch(IOException ignore) {}
+	}
+
+	private String readRecord() throws IOException {
+		for (;;) {
+			int index = pending.indexOf(delimiter, searchFrom);
+			if (index >= 0) {
+				String record = pending.substring(start, index);
+				start = index + delimiter.length();
+				searchFrom = start;
+				return trim(record);
+			}
+
+			// A delimiter may straddle the end of what has been decoded so far
+			searchFrom = Math.max(start, pending.length() - delimiter.length() + 1);
+			if (start > 0) {
+				pending.delete(0, start);
+				searchFrom -= start;
+				start = 0;
+			}
+
+			if (!fill()) {
+				if (pending.length() > 0) {
+					String record = pending.toString();
+					pending.setLength(0);
+					searchFrom = 0;
+					return trim(record);
+				}
+				return null;
+			}
+		}
+	}
+
+	private String trim(String record) {
+		if (lineMode && record.endsWith("\r"))
+			return record.substring(0, record.length() - 1);
+
+		return record;
+	}
+
+	/**
+	 * Reads and decodes the next chunk of input into the pending characters.
+	 *
+	 * @return false once the input is exhausted
+	 */
+	private boolean fill() throws IOException {
+		if (endOfInput)
+			return false;
+
+		int read = channel.read(bytes);
+		bytes.flip();
+		if (read == -1)
+			endOfInput = true;
+
+		for (;;) {
+			CoderResult result = decoder.decode(bytes, chars, endOfInput);
+			drainChars();
+			if (!result.isOverflow())
+				break;
+		}
+		bytes.compact();
+
+		if (endOfInput) {
+			while (decoder.flush(chars).isOverflow()) {
+				drainChars();
+			}
+			drainChars();
+		}
+
+		return true;
+	}
+
+	private void drainChars() {
+		chars.flip();
+		pending.append(chars);
+		chars.clear();
+	}
+}
@@ -0,0 +1,33 @@
+package org.cadams.jbouquet.file;
+
+/**
+ * Processes one chunk of records of a file split by {@link ParallelRecords}.
+ *
+ * <p>
+ * Chunks are processed concurrently, so implementations must not share mutable state
+ * between calls to {@link #process(RecordIterator)}. The per-chunk results are then
+ * combined pairwise in file order.
+ * </p>
+ *
+ * @author cta
+ *
+ * @param <R> the result type
+ */
+public interface RecordProcessor<R> {
+	/**
+	 * Processes every record of a single chunk.
+	 *
+	 * @param records
+	 * @return the chunk result
+	 */
+	R process(RecordIterator records);
+
+	/**
+	 * Combines the results of two adjacent chunks, {@code left} preceding {@code right} in the file.
+	 *
+	 * @param left
+	 * @param right
+	 * @return
+	 */
+	R combine(R left, R right);
+}